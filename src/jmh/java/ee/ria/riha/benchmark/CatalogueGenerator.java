@@ -0,0 +1,121 @@
+package ee.ria.riha.benchmark;
+
+import ee.ria.riha.models.Infosystem;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Generates synthetic catalogues of schema valid infosystems spread over several producers. A share of the
+ * infosystems, given by the duplicate ratio, is published by a second producer with an older or newer timestamp. A
+ * share of the producer documents, given by the invalid ratio, lacks the required shortname.
+ */
+public class CatalogueGenerator {
+
+  private static final String[] SYSTEM_STATUSES = {"ASUTAMISEL", "KASUTUSEL", "LÕPETATUD"};
+  private static final String[] APPROVAL_STATUSES = {"KOOSKÕLASTATUD", "MITTE KOOSKÕLASTATUD"};
+  private static final LocalDateTime BASE_TIME = LocalDateTime.of(2016, 1, 1, 0, 0);
+  private static final int OWNERS = 500;
+
+  private final int size;
+  private final int producers;
+  private final double duplicateRatio;
+  private final double invalidRatio;
+  private final Random random;
+
+  public CatalogueGenerator(int size, int producers, double duplicateRatio) {
+    this(size, producers, duplicateRatio, 0);
+  }
+
+  public CatalogueGenerator(int size, int producers, double duplicateRatio, double invalidRatio) {
+    this.size = size;
+    this.producers = producers;
+    this.duplicateRatio = duplicateRatio;
+    this.invalidRatio = invalidRatio;
+    this.random = new Random(size * 31L + producers);
+  }
+
+  /**
+   * @return json documents of every producer, {@code size} distinct uris in total plus duplicates
+   */
+  public List<List<JSONObject>> producerDocuments() {
+    List<List<JSONObject>> result = new ArrayList<>();
+    for (int i = 0; i < producers; i++) result.add(new ArrayList<>());
+
+    for (int i = 0; i < size; i++) {
+      int producer = i % producers;
+      result.get(producer).add(producerDocument(i, producer));
+      if (producers > 1 && random.nextDouble() < duplicateRatio) {
+        result.get((producer + 1 + random.nextInt(producers - 1)) % producers).add(producerDocument(i, producer));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return owner codes of all generated infosystems
+   */
+  public Set<String> ownerCodes() {
+    Set<String> codes = new TreeSet<>();
+    for (int i = 0; i < Math.min(size, OWNERS); i++) codes.add(ownerCode(i));
+    return codes;
+  }
+
+  public List<List<Infosystem>> producerInfosystems() {
+    return producerDocuments().stream()
+      .map(documents -> documents.stream().map(Infosystem::new).collect(toList()))
+      .collect(toList());
+  }
+
+  public List<Infosystem> infosystems() {
+    List<Infosystem> result = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) result.add(new Infosystem(document(i, i % producers)));
+    return result;
+  }
+
+  public JSONArray approvals() {
+    JSONArray approvals = new JSONArray();
+    for (int i = 0; i < size; i += 2) {
+      approvals.put(new JSONObject()
+        .put("uri", uri(i))
+        .put("timestamp", BASE_TIME.plusHours(i % 1000).toString())
+        .put("status", APPROVAL_STATUSES[i % APPROVAL_STATUSES.length]));
+    }
+    return approvals;
+  }
+
+  private JSONObject producerDocument(int i, int producer) {
+    JSONObject document = document(i, producer);
+    if (random.nextDouble() < invalidRatio) document.remove("shortname");
+    return document;
+  }
+
+  private JSONObject document(int i, int producer) {
+    return new JSONObject()
+      .put("uri", uri(i))
+      .put("shortname", "system" + i)
+      .put("name", "Infosüsteem number " + i)
+      .put("documentation", "https://producer" + producer + ".example/docs/system" + i)
+      .put("owner", new JSONObject().put("code", ownerCode(i)).put("name", "Asutus " + i % OWNERS))
+      .put("meta", new JSONObject()
+        .put("system_status", new JSONObject()
+          .put("status", SYSTEM_STATUSES[i % SYSTEM_STATUSES.length])
+          .put("timestamp", BASE_TIME.plusMinutes(random.nextInt(1_000_000)).toString())));
+  }
+
+  private static String ownerCode(int i) {
+    return String.valueOf(70000000 + i % OWNERS);
+  }
+
+  private static String uri(int i) {
+    return "http://riha.example/systems/system" + i;
+  }
+}
@@ -0,0 +1,82 @@
+package ee.ria.riha.controllers;
+
+import ee.ria.riha.benchmark.CatalogueGenerator;
+import ee.ria.riha.service.InfosystemStorageService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class PublishBenchmark {
+
+  private static final String PROJECTED_FIELDS = "uri,owner.code,meta.approval_status";
+
+  @Param({"1000", "10000", "100000", "1000000"})
+  int size;
+
+  @Param({"identity", "gzip"})
+  String acceptEncoding;
+
+  private PublishController controller;
+  private Path file;
+  private String etag;
+
+  @Setup
+  public void setUp() throws Exception {
+    file = Files.createTempFile("publish-benchmark", ".json");
+    InfosystemStorageService storageService = new InfosystemStorageService();
+    ReflectionTestUtils.setField(storageService, "filePath", file);
+    storageService.save(new CatalogueGenerator(size, 1, 0).infosystems());
+    etag = storageService.snapshot().getEtag();
+
+    controller = new PublishController();
+    controller.storageService = storageService;
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(file);
+    Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".changes"));
+    Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".index"));
+  }
+
+  @Benchmark
+  public MockHttpServletResponse infosystems() throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/systems.json");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    controller.infosystems(new ServletWebRequest(request, response), acceptEncoding, null, null, response);
+    return response;
+  }
+
+  /**
+   * Fields a lightweight client needs, served from the cached projection.
+   */
+  @Benchmark
+  public MockHttpServletResponse infosystemsProjected() throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/systems.json");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    controller.infosystems(new ServletWebRequest(request, response), acceptEncoding, null, PROJECTED_FIELDS, response);
+    return response;
+  }
+
+  @Benchmark
+  public ResponseEntity<StreamingResponseBody> infosystemsNotModified() throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/systems.json");
+    request.addHeader("If-None-Match", etag);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    return controller.infosystems(new ServletWebRequest(request, response), acceptEncoding, null, null, response);
+  }
+}
@@ -0,0 +1,51 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.benchmark.CatalogueGenerator;
+import ee.ria.riha.models.Infosystem;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ApprovalsBenchmark {
+
+  @Param({"1000", "10000", "100000", "1000000"})
+  int size;
+
+  private HarvestService service;
+  private List<Infosystem> infosystems;
+  private Map<String, JSONObject> approvals;
+
+  @Setup
+  public void setUp() throws Exception {
+    CatalogueGenerator generator = new CatalogueGenerator(size, 1, 0);
+    JSONArray approvalData = generator.approvals();
+    service = new HarvestService() {
+      @Override
+      JSONArray getApprovalData() {
+        return approvalData;
+      }
+    };
+    infosystems = generator.infosystems();
+    approvals = service.getApprovals();
+  }
+
+  @Benchmark
+  public Map<String, JSONObject> getApprovals() throws Exception {
+    return service.getApprovals();
+  }
+
+  @Benchmark
+  public List<Infosystem> addApprovals() {
+    return service.addApprovals(infosystems, approvals);
+  }
+}
@@ -0,0 +1,243 @@
+package ee.ria.riha.service;
+
+import ch.qos.logback.classic.Level;
+import ee.ria.riha.benchmark.CatalogueGenerator;
+import ee.ria.riha.controllers.PublishController;
+import io.micrometer.core.instrument.Counter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * End-to-end load test: full harvests over http against stub producers and the approvals feed, while concurrent
+ * readers request /systems.json. Reports harvest wall time, records harvested per second, reader throughput and the
+ * heap high-water mark.
+ * <p>
+ * Options are given as name=value: size, producers, duplicates, invalid, latency (ms), errors, truncated (ratios of
+ * requests), runs, readers, gzip, spill (records per sorted run when merging on disk, 0 merges in memory) and zeroCopy.
+ */
+public class HarvestLoadHarness {
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      String[] option = arg.split("=", 2);
+      if (option.length == 2) options.put(option[0], option[1]);
+      else System.out.println("Ignoring argument " + arg);
+    }
+    ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+    new HarvestLoadHarness(options).run();
+  }
+
+  private final int size;
+  private final int producers;
+  private final double duplicates;
+  private final double invalid;
+  private final long latencyMillis;
+  private final double errors;
+  private final double truncated;
+  private final int runs;
+  private final int readers;
+  private final boolean gzip;
+  private final int spill;
+  private final boolean zeroCopy;
+
+  private HarvestLoadHarness(Map<String, String> options) {
+    size = Integer.parseInt(options.getOrDefault("size", "100000"));
+    producers = Integer.parseInt(options.getOrDefault("producers", "10"));
+    duplicates = Double.parseDouble(options.getOrDefault("duplicates", "0.1"));
+    invalid = Double.parseDouble(options.getOrDefault("invalid", "0.01"));
+    latencyMillis = Long.parseLong(options.getOrDefault("latency", "0"));
+    errors = Double.parseDouble(options.getOrDefault("errors", "0"));
+    truncated = Double.parseDouble(options.getOrDefault("truncated", "0"));
+    runs = Integer.parseInt(options.getOrDefault("runs", "3"));
+    readers = Integer.parseInt(options.getOrDefault("readers", "8"));
+    gzip = Boolean.parseBoolean(options.getOrDefault("gzip", "false"));
+    spill = Integer.parseInt(options.getOrDefault("spill", "0"));
+    zeroCopy = Boolean.parseBoolean(options.getOrDefault("zeroCopy", "false"));
+  }
+
+  private void run() throws Exception {
+    System.out.printf("size=%d producers=%d duplicates=%.2f invalid=%.2f latency=%dms errors=%.2f truncated=%.2f readers=%d gzip=%s spill=%d zeroCopy=%s%n",
+      size, producers, duplicates, invalid, latencyMillis, errors, truncated, readers, gzip, spill, zeroCopy);
+
+    CatalogueGenerator generator = new CatalogueGenerator(size, producers, duplicates, invalid);
+    Path directory = Files.createTempDirectory("harvest-load");
+    try (StubProducerServer server = new StubProducerServer()) {
+      HarvestService service = harvestService(server, generator, directory);
+      PublishController controller = new PublishController();
+      ReflectionTestUtils.setField(controller, "storageService", service.infosystemStorageService);
+
+      HeapSampler heap = new HeapSampler();
+      Readers readers = new Readers(controller);
+      heap.start();
+      readers.start();
+      try {
+        for (int run = 1; run <= runs; run++) harvest(service, run);
+      }
+      finally {
+        readers.stop();
+        heap.stop();
+        service.close();
+      }
+      readers.report();
+      System.out.printf("heap high-water mark: %.1f MB%n", heap.max.get() / 1024.0 / 1024.0);
+    }
+    finally {
+      delete(directory);
+    }
+  }
+
+  private HarvestService harvestService(StubProducerServer server, CatalogueGenerator generator, Path directory) {
+    String owners = String.join(",", generator.ownerCodes());
+    Properties entries = new Properties();
+    List<List<JSONObject>> documents = generator.producerDocuments();
+    for (int i = 0; i < documents.size(); i++) {
+      String url = server.serve("/producers/" + i, new JSONArray(documents.get(i)).toString().getBytes(UTF_8))
+        .setLatencyMillis(latencyMillis)
+        .setErrorRatio(errors)
+        .setTruncatedRatio(truncated)
+        .url;
+      entries.setProperty(url, owners);
+    }
+
+    HarvestService service = new HarvestService();
+    service.approvalsUrl = server.serve("/approvals", generator.approvals().toString()).url;
+    service.legacyProducerUrl = "";
+    service.producerRegistry = new ProducerRegistry(directory.resolve("producers.db"));
+    service.producerRegistry.update(entries);
+    service.approvalStore = new ApprovalStore(directory.resolve("approvals.json"));
+    service.shardStore = new ProducerShardStore(directory.resolve("producer-shards"));
+    service.harvestIndex = new HarvestIndex(directory.resolve("harvest-index.json"));
+    service.spillRecords = spill;
+    service.spillDirectory = directory.resolve("harvest-spill");
+    service.infosystemStorageService = new InfosystemStorageService();
+    service.infosystemStorageService.filePath = directory.resolve("infosystems.json");
+    service.infosystemStorageService.zeroCopy = zeroCopy;
+    return service;
+  }
+
+  private void harvest(HarvestService service, int run) {
+    double acceptedBefore = accepted(service);
+    long started = System.nanoTime();
+    service.harvestInfosystems();
+    double seconds = (System.nanoTime() - started) / 1e9;
+    double accepted = accepted(service) - acceptedBefore;
+    System.out.printf("harvest %d: %.2f s, %.0f records accepted, %.0f records/s%n", run, seconds, accepted, accepted / seconds);
+  }
+
+  private static double accepted(HarvestService service) {
+    return service.meterRegistry.find("harvester.producer.records").tags("outcome", "accepted").counters().stream()
+      .mapToDouble(Counter::count).sum();
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  /**
+   * Keeps requesting /systems.json from several threads and counts the responses.
+   */
+  private class Readers {
+    private final PublishController controller;
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final List<Thread> threads = new ArrayList<>();
+    private long started;
+    private long stopped;
+
+    Readers(PublishController controller) {
+      this.controller = controller;
+    }
+
+    void start() {
+      started = System.nanoTime();
+      for (int i = 0; i < readers; i++) {
+        Thread thread = new Thread(this::read, "reader-" + i);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+      }
+    }
+
+    private void read() {
+      while (running.get()) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/systems.json");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        try {
+          controller.infosystems(new ServletWebRequest(request, response), gzip ? "gzip" : null, null, null, response);
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        requests.incrementAndGet();
+        bytes.addAndGet(response.getContentAsByteArray().length);
+      }
+    }
+
+    void stop() throws InterruptedException {
+      running.set(false);
+      for (Thread thread : threads) thread.join();
+      stopped = System.nanoTime();
+    }
+
+    void report() {
+      double seconds = (stopped - started) / 1e9;
+      System.out.printf("readers: %d requests, %.0f requests/s, %.1f MB/s%n", requests.get(), requests.get() / seconds,
+        bytes.get() / seconds / 1024 / 1024);
+    }
+  }
+
+  /**
+   * Samples used heap, the maximum is an approximate high-water mark between garbage collections.
+   */
+  private static class HeapSampler {
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final Thread thread = new Thread(this::sample, "heap-sampler");
+
+    void start() {
+      System.gc();
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void sample() {
+      while (running.get()) {
+        max.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+        try {
+          Thread.sleep(10);
+        }
+        catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    void stop() throws InterruptedException {
+      running.set(false);
+      thread.join();
+    }
+  }
+}
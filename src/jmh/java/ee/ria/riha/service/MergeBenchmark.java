@@ -0,0 +1,42 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.benchmark.CatalogueGenerator;
+import ee.ria.riha.models.Infosystem;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class MergeBenchmark {
+
+  @Param({"1000", "10000", "100000", "1000000"})
+  int size;
+
+  @Param({"0.0", "0.3", "1.0"})
+  double duplicateRatio;
+
+  @Param({"10"})
+  int producers;
+
+  private List<List<Infosystem>> producerInfosystems;
+
+  @Setup
+  public void setUp() {
+    producerInfosystems = new CatalogueGenerator(size, producers, duplicateRatio).producerInfosystems();
+  }
+
+  @Benchmark
+  public List<Infosystem> merge() {
+    InfosystemMerger merger = new InfosystemMerger();
+    for (int i = 0; i < producerInfosystems.size(); i++) {
+      merger.add(i, producerInfosystems.get(i));
+    }
+    return merger.result();
+  }
+}
@@ -0,0 +1,69 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.benchmark.CatalogueGenerator;
+import ee.ria.riha.models.Infosystem;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class StorageBenchmark {
+
+  @Param({"1000", "10000", "100000", "1000000"})
+  int size;
+
+  private Path directory;
+  private InfosystemStorageService service;
+  private List<Infosystem> infosystems;
+
+  @Setup
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("storage-benchmark");
+    service = storage();
+    infosystems = new CatalogueGenerator(size, 1, 0).infosystems();
+    service.save(infosystems);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : files.collect(toList())) Files.delete(file);
+    }
+    Files.delete(directory);
+  }
+
+  private InfosystemStorageService storage() {
+    InfosystemStorageService storage = new InfosystemStorageService();
+    storage.filePath = directory.resolve("infosystems.json");
+    return storage;
+  }
+
+  /**
+   * Saves freshly wrapped infosystems, so their serialized json is not cached from the previous invocation.
+   */
+  @Benchmark
+  public void save() {
+    service.save(infosystems.stream().map(infosystem -> new Infosystem(infosystem.getJson())).collect(toList()));
+  }
+
+  @Benchmark
+  public String loadAfterRestart() {
+    return storage().load();
+  }
+
+  @Benchmark
+  public String load() {
+    return service.load();
+  }
+}
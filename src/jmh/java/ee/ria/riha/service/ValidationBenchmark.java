@@ -0,0 +1,45 @@
+package ee.ria.riha.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import ee.ria.riha.benchmark.CatalogueGenerator;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ValidationBenchmark {
+
+  @Param({"1000", "10000", "100000", "1000000"})
+  int size;
+
+  private HarvestService service;
+  private List<JsonNode> documents;
+
+  @Setup
+  public void setUp() throws Exception {
+    service = new HarvestService();
+    ObjectMapper objectMapper = new ObjectMapper();
+    documents = new ArrayList<>(size);
+    for (List<JSONObject> producer : new CatalogueGenerator(size, 1, 0).producerDocuments()) {
+      for (JSONObject document : producer) documents.add(objectMapper.readTree(document.toString()));
+    }
+  }
+
+  @Benchmark
+  public int validateInfosystem() {
+    int valid = 0;
+    for (JsonNode document : documents) {
+      if (service.validateInfosystem(document)) valid++;
+    }
+    return valid;
+  }
+}
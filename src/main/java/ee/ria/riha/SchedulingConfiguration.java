@@ -0,0 +1,24 @@
+package ee.ria.riha;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+/**
+ * Runs scheduled tasks on a pool, so approvals are refreshed while a harvest is running.
+ */
+@Configuration
+public class SchedulingConfiguration {
+
+  @Value("${scheduler.poolSize:2}")
+  int poolSize = 2;
+
+  @Bean
+  public ThreadPoolTaskScheduler taskScheduler() {
+    ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+    scheduler.setPoolSize(poolSize);
+    scheduler.setThreadNamePrefix("scheduler-");
+    return scheduler;
+  }
+}
@@ -0,0 +1,48 @@
+package ee.ria.riha;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Writes streamed responses on a bounded pool of their own instead of servlet container threads.
+ * <p>
+ * The writes still block: every response holds a pool thread until its client has read the whole body. With
+ * {@code publisher.streamingThreads} slow clients reading at once, all other streamed responses wait in the queue, so
+ * the pool keeps slow readers of /systems.json from taking the container threads of other endpoints, it does not
+ * serve more concurrent readers than it has threads. Size it to the number of concurrent downloads to serve, at most
+ * the connector's {@code server.tomcat.max-threads}.
+ */
+@Configuration
+public class StreamingConfiguration extends WebMvcConfigurerAdapter {
+
+  @Value("${publisher.streamingThreads:16}")
+  int threads = 16;
+
+  @Value("${publisher.streamingQueue:1000}")
+  int queue = 1000;
+
+  @Value("${publisher.streamingTimeoutSeconds:300}")
+  int timeoutSeconds = 300;
+
+  @Bean
+  public ThreadPoolTaskExecutor streamingExecutor() {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(threads);
+    executor.setMaxPoolSize(threads);
+    executor.setQueueCapacity(queue);
+    executor.setThreadNamePrefix("streaming-");
+    return executor;
+  }
+
+  @Override
+  public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+    configurer.setTaskExecutor(streamingExecutor());
+    configurer.setDefaultTimeout(SECONDS.toMillis(timeoutSeconds));
+  }
+}
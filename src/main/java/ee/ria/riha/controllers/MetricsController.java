@@ -0,0 +1,19 @@
+package ee.ria.riha.controllers;
+
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+public class MetricsController {
+
+  @Autowired PrometheusMeterRegistry meterRegistry;
+
+  @RequestMapping(value = "/prometheus", method = RequestMethod.GET, produces = TextFormat.CONTENT_TYPE_004)
+  public String prometheus() {
+    return meterRegistry.scrape();
+  }
+}
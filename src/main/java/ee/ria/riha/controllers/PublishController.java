@@ -1,21 +1,259 @@
 package ee.ria.riha.controllers;
 
+import ee.ria.riha.service.ArchivedGeneration;
+import ee.ria.riha.service.GenerationFile;
+import ee.ria.riha.service.InfosystemQuery;
 import ee.ria.riha.service.InfosystemStorageService;
+import ee.ria.riha.service.PublishedSnapshot;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptorAdapter;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.concurrent.Callable;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.springframework.http.HttpHeaders.ACCEPT_ENCODING;
+import static org.springframework.http.HttpHeaders.CONTENT_ENCODING;
+import static org.springframework.http.HttpHeaders.ETAG;
+import static org.springframework.http.HttpHeaders.VARY;
 
 @RestController
 public class PublishController {
 
+  private static final int MAX_QUERY_LIMIT = 1000;
+
   @Autowired InfosystemStorageService storageService;
 
+  @Autowired MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  @Value("${publisher.streaming:false}")
+  boolean streaming;
+
+  @Value("${publisher.chunkBytes:65536}")
+  int chunkBytes = 65536;
+
+  /**
+   * Serves the published catalogue, or a generation kept in the snapshot history. With {@code fields} only the given
+   * fields of every infosystem are served, from projections cached for the published generation. In streaming mode
+   * the body is written in chunks on the streaming executor instead of the servlet thread, see
+   * {@link ee.ria.riha.StreamingConfiguration} for its limits.
+   */
   @CrossOrigin
   @RequestMapping(value = "/systems.json", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-  public String infosystems() {
-    return storageService.load();
+  public ResponseEntity<StreamingResponseBody> infosystems(WebRequest request,
+                                                           @RequestHeader(value = ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                                           @RequestParam(value = "generation", required = false) Long archivedGeneration,
+                                                           @RequestParam(value = "fields", required = false) String fields,
+                                                           HttpServletResponse servletResponse) throws IOException {
+    long started = System.nanoTime();
+    boolean projected = fields != null && !fields.trim().isEmpty();
+    if (archivedGeneration != null) {
+      if (projected) return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+      return archived(archivedGeneration, request, servletResponse, started);
+    }
+
+    if (storageService.isZeroCopy() && !projected) {
+      GenerationFile generation = storageService.openGeneration();
+      if (generation != null) {
+        if (request.checkNotModified(generation.getEtag())) {
+          generation.close();
+          record(started, "not_modified", 0);
+          return null;
+        }
+        if (streaming) {
+          closeOnCompletion(request, generation);
+          return ResponseEntity.ok()
+            .contentType(MediaType.APPLICATION_JSON_UTF8)
+            .eTag(generation.getEtag())
+            .contentLength(generation.getSize())
+            .body(out -> {
+              try (GenerationFile file = generation) {
+                file.transferTo(Channels.newChannel(out));
+              }
+              record(started, "identity", generation.getSize());
+            });
+        }
+        try (GenerationFile file = generation) {
+          serve(file, servletResponse);
+        }
+        record(started, "identity", generation.getSize());
+        return null;
+      }
+    }
+
+    PublishedSnapshot snapshot;
+    try {
+      snapshot = projected ? storageService.projection(fields) : storageService.snapshot();
+    }
+    catch (IllegalArgumentException e) {
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+    boolean gzip = acceptsGzip(acceptEncoding);
+    String etag = gzip ? snapshot.getGzipEtag() : snapshot.getEtag();
+    servletResponse.setHeader(VARY, ACCEPT_ENCODING);
+    if (request.checkNotModified(etag)) {
+      record(started, "not_modified", 0);
+      return null;
+    }
+
+    byte[] body = gzip ? snapshot.getGzipped() : snapshot.getJson();
+    String encoding = gzip ? "gzip" : "identity";
+    if (streaming) {
+      ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+        .contentType(MediaType.APPLICATION_JSON_UTF8)
+        .eTag(etag)
+        .contentLength(body.length);
+      if (gzip) response.header(CONTENT_ENCODING, "gzip");
+      return response.body(out -> {
+        write(body, out);
+        record(started, encoding, body.length);
+      });
+    }
+
+    servletResponse.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+    servletResponse.setHeader(ETAG, etag);
+    if (gzip) servletResponse.setHeader(CONTENT_ENCODING, "gzip");
+    servletResponse.setContentLength(body.length);
+    servletResponse.getOutputStream().write(body);
+    record(started, encoding, body.length);
+    return null;
+  }
+
+  /**
+   * Closes the resource when the async request completes, also when its body is never written because the streaming
+   * executor rejected it or the request timed out before it started.
+   */
+  private static void closeOnCompletion(WebRequest request, Closeable resource) {
+    WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(resource, new CallableProcessingInterceptorAdapter() {
+      @Override
+      public <T> void afterCompletion(NativeWebRequest request, Callable<T> task) throws Exception {
+        resource.close();
+      }
+    });
+  }
+
+  /**
+   * Serves a generation from the snapshot history, assembling it from its stored documents. The documents are kept
+   * until the response has been written, also when the generation is pruned meanwhile.
+   */
+  private ResponseEntity<StreamingResponseBody> archived(long generation, WebRequest request,
+                                                         HttpServletResponse servletResponse, long started) throws IOException {
+    ArchivedGeneration archived = storageService.archivedGeneration(generation);
+    if (archived == null) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    if (request.checkNotModified(archived.getEtag())) {
+      archived.close();
+      record(started, "not_modified", 0);
+      return null;
+    }
+
+    if (streaming) {
+      closeOnCompletion(request, archived);
+      return ResponseEntity.ok()
+        .contentType(MediaType.APPLICATION_JSON_UTF8)
+        .eTag(archived.getEtag())
+        .contentLength(archived.getSize())
+        .body(out -> {
+          try (ArchivedGeneration body = archived) {
+            body.writeTo(out);
+          }
+          record(started, "identity", archived.getSize());
+        });
+    }
+
+    try (ArchivedGeneration body = archived) {
+      servletResponse.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+      servletResponse.setHeader(ETAG, body.getEtag());
+      servletResponse.setContentLengthLong(body.getSize());
+      body.writeTo(servletResponse.getOutputStream());
+    }
+    record(started, "identity", archived.getSize());
+    return null;
+  }
+
+  /**
+   * Writes the shared body in chunks, so a request does not buffer more than a chunk on top of it.
+   */
+  private void write(byte[] body, OutputStream out) throws IOException {
+    for (int offset = 0; offset < body.length; offset += chunkBytes) {
+      out.write(body, offset, Math.min(chunkBytes, body.length - offset));
+      out.flush();
+    }
+  }
+
+  private void record(long started, String response, long bytes) {
+    meterRegistry.timer("publisher.systems", "response", response).record(System.nanoTime() - started, NANOSECONDS);
+    meterRegistry.summary("publisher.systems.bytes", "response", response).record(bytes);
+  }
+
+  @CrossOrigin
+  @RequestMapping(value = "/changes", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+  public String changes(@RequestParam(value = "since", required = false) Long since) {
+    return storageService.changes(since);
+  }
+
+  /**
+   * Generations kept in the snapshot history, oldest first, each readable from /systems.json?generation=.
+   */
+  @CrossOrigin
+  @RequestMapping(value = "/generations", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+  public String generations() {
+    return new JSONObject().put("generations", new JSONArray(storageService.archivedGenerations())).toString();
+  }
+
+  @CrossOrigin
+  @RequestMapping(value = "/systems", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+  public String query(@RequestParam(value = "uri", required = false) String uri,
+                      @RequestParam(value = "owner", required = false) String owner,
+                      @RequestParam(value = "approvalStatus", required = false) String approvalStatus,
+                      @RequestParam(value = "systemStatus", required = false) String systemStatus,
+                      @RequestParam(value = "after", required = false) String after,
+                      @RequestParam(value = "limit", defaultValue = "100") int limit) {
+    return storageService.query(new InfosystemQuery()
+      .setUri(uri)
+      .setOwner(owner)
+      .setApprovalStatus(approvalStatus)
+      .setSystemStatus(systemStatus)
+      .setAfter(after)
+      .setLimit(Math.max(1, Math.min(limit, MAX_QUERY_LIMIT))));
+  }
+
+  private void serve(GenerationFile generation, HttpServletResponse response) throws IOException {
+    response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+    response.setHeader(ETAG, generation.getEtag());
+    response.setContentLengthLong(generation.getSize());
+    generation.transferTo(Channels.newChannel(response.getOutputStream()));
+  }
+
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) return false;
+
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      if (!parts[0].trim().equalsIgnoreCase("gzip")) continue;
+      return parts.length == 1 || !parts[1].trim().matches("q=0(\\.0*)?");
+    }
+    return false;
   }
 }
@@ -1,35 +1,255 @@
 package ee.ria.riha.models;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Immutable infosystem document. The document is kept as serialized UTF-8 json and written out as is, its uri, owner
+ * code and system status timestamp are extracted once when the infosystem is created. The timestamp is kept as epoch
+ * seconds and nanoseconds, so comparing it keeps every fraction digit without an object per infosystem.
+ */
 public class Infosystem {
 
-  private JSONObject json;
+  /**
+   * {@link #getUpdatedSeconds()} of an infosystem without a valid system status timestamp.
+   */
+  public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+  /**
+   * Orders infosystems by their system status timestamp at full precision, those without a valid timestamp first.
+   */
+  public static final Comparator<Infosystem> BY_UPDATED =
+    Comparator.comparingLong(Infosystem::getUpdatedSeconds).thenComparingInt(Infosystem::getUpdatedNanos);
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private static final String[] URI = {"uri"};
+  private static final String[] OWNER = {"owner", "code"};
+  private static final String[] TIMESTAMP = {"meta", "system_status", "timestamp"};
+
+  private final byte[] json;
+
+  private final String id;
+
+  private final String owner;
+
+  private final long updatedSeconds;
+
+  private final int updatedNanos;
+
+  private final String contentHash;
 
   public Infosystem(JSONObject json) {
+    this(json, null);
+  }
+
+  public Infosystem(JSONObject json, String contentHash) {
+    this(json.toString().getBytes(UTF_8), contentHash);
+  }
+
+  /**
+   * @param json serialized json object, must not be modified afterwards
+   */
+  public Infosystem(byte[] json, String contentHash) {
+    String[] values = values(json, URI, OWNER, TIMESTAMP);
+    this.json = json;
+    this.id = values[0];
+    this.owner = values[1];
+    LocalDateTime updated = parse(values[2]);
+    this.updatedSeconds = updated == null ? NO_TIMESTAMP : updated.toEpochSecond(ZoneOffset.UTC);
+    this.updatedNanos = updated == null ? 0 : updated.getNano();
+    this.contentHash = contentHash;
+  }
+
+  private Infosystem(Infosystem source, byte[] json) {
     this.json = json;
+    this.id = source.id;
+    this.owner = source.owner;
+    this.updatedSeconds = source.updatedSeconds;
+    this.updatedNanos = source.updatedNanos;
+    this.contentHash = source.contentHash;
+  }
+
+  /**
+   * Splits a serialized json array into infosystems, elements that are not json objects are skipped.
+   */
+  public static List<Infosystem> listOf(byte[] jsonArray) {
+    List<Infosystem> infosystems = new ArrayList<>();
+    if (jsonArray.length == 0) return infosystems;
+
+    try (JsonParser parser = objectMapper.getFactory().createParser(jsonArray)) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) throw new IllegalArgumentException("Expected json array");
+
+      JsonToken token;
+      while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+        if (token == null) throw new IllegalArgumentException("Unexpected end of json array");
+        JsonNode element = objectMapper.readTree(parser);
+        if (element.isObject()) infosystems.add(new Infosystem(objectMapper.writeValueAsBytes(element), null));
+      }
+    }
+    catch (IOException e) {
+      throw new IllegalArgumentException(e);
+    }
+    return infosystems;
+  }
+
+  /**
+   * Joins the serialized documents of the infosystems into a json array without parsing them again.
+   */
+  public static byte[] toJsonArray(List<Infosystem> infosystems) {
+    int size = 2 + Math.max(0, infosystems.size() - 1);
+    for (Infosystem infosystem : infosystems) size += infosystem.json.length;
+
+    ByteBuffer array = ByteBuffer.allocate(size).put((byte) '[');
+    for (int i = 0; i < infosystems.size(); i++) {
+      if (i > 0) array.put((byte) ',');
+      array.put(infosystems.get(i).json);
+    }
+    return array.put((byte) ']').array();
   }
 
   public String getId() {
-    return json.getString("uri");
+    return id;
   }
 
+  /**
+   * System status timestamp with all its fraction digits, or null if the infosystem has no valid timestamp.
+   */
   public LocalDateTime getUpdated() {
-    return LocalDateTime.parse(json.getJSONObject("meta").getJSONObject("system_status").getString("timestamp"), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+    if (updatedSeconds == NO_TIMESTAMP) return null;
+    return LocalDateTime.ofEpochSecond(updatedSeconds, updatedNanos, ZoneOffset.UTC);
+  }
+
+  /**
+   * System status timestamp as epoch seconds, or {@link #NO_TIMESTAMP} if the infosystem has no valid timestamp.
+   */
+  public long getUpdatedSeconds() {
+    return updatedSeconds;
+  }
+
+  /**
+   * Nanoseconds of the second of the system status timestamp, 0 if the infosystem has no valid timestamp.
+   */
+  public int getUpdatedNanos() {
+    return updatedNanos;
   }
 
-  public void setApproval(JSONObject approval){
-    json.getJSONObject("meta").put("approval_status", approval);
+  /**
+   * System status timestamp as it appears in the document, read from the document on every call.
+   */
+  public String getTimestamp() {
+    return getString(TIMESTAMP);
   }
 
+  /**
+   * String value at the given path of nested objects, read from the document on every call.
+   */
+  public String getString(String... path) {
+    return values(json, path)[0];
+  }
+
+  public Infosystem withApproval(JSONObject approval) {
+    try {
+      ObjectNode root = (ObjectNode) objectMapper.readTree(json);
+      JsonNode meta = root.path("meta");
+      ObjectNode metaNode = meta.isObject() ? (ObjectNode) meta : root.putObject("meta");
+      metaNode.set("approval_status", objectMapper.readTree(approval.toString()));
+      return new Infosystem(this, objectMapper.writeValueAsBytes(root));
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Parses the document, changes to the returned object do not affect this infosystem.
+   */
   public JSONObject getJson() {
+    return new JSONObject(toJsonString());
+  }
+
+  /**
+   * Serialized json of this infosystem, shared without copying so it must not be modified.
+   */
+  public byte[] getJsonBytes() {
     return json;
   }
 
+  /**
+   * Hash of the document as harvested from its producer, before approval information was added.
+   */
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  public String toJsonString() {
+    return new String(json, UTF_8);
+  }
+
   public String getOwner() {
-    return json.getJSONObject("owner").getString("code");
+    return owner;
+  }
+
+  private static LocalDateTime parse(String timestamp) {
+    if (timestamp == null) return null;
+    try {
+      return LocalDateTime.parse(timestamp, DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+    }
+    catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Reads the string values at the given paths in a single pass over the document, skipping everything else.
+   */
+  private static String[] values(byte[] json, String[]... paths) {
+    String[] values = new String[paths.length];
+    try (JsonParser parser = objectMapper.getFactory().createParser(json)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) throw new IllegalArgumentException("Expected json object");
+      int[] all = new int[paths.length];
+      for (int i = 0; i < all.length; i++) all[i] = i;
+      read(parser, paths, all, 0, values);
+    }
+    catch (IOException e) {
+      throw new IllegalArgumentException(e);
+    }
+    return values;
+  }
+
+  private static void read(JsonParser parser, String[][] paths, int[] active, int depth, String[] values) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      int[] nested = null;
+      int nestedCount = 0;
+      for (int i : active) {
+        if (!paths[i][depth].equals(name)) continue;
+        if (paths[i].length == depth + 1) values[i] = token == JsonToken.VALUE_STRING ? parser.getText() : null;
+        else if (token == JsonToken.START_OBJECT) {
+          if (nested == null) nested = new int[active.length];
+          nested[nestedCount++] = i;
+        }
+      }
+      if (nestedCount > 0) read(parser, paths, Arrays.copyOf(nested, nestedCount), depth + 1, values);
+      else parser.skipChildren();
+    }
   }
 }
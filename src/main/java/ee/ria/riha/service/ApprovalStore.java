@@ -0,0 +1,96 @@
+package ee.ria.riha.service;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Last known approvals by infosystem uri. Approvals are persisted, so infosystems can be published with the approvals
+ * known before a restart while the approvals feed is unreachable.
+ */
+class ApprovalStore {
+
+  private Logger logger = LoggerFactory.getLogger(ApprovalStore.class);
+
+  private final Path path;
+
+  private Map<String, JSONObject> approvals;
+  private boolean loaded;
+
+  ApprovalStore(Path path) {
+    this.path = path;
+  }
+
+  /**
+   * @return last known approvals or null if approvals have never been fetched
+   */
+  synchronized Map<String, JSONObject> get() {
+    load();
+    return approvals;
+  }
+
+  /**
+   * Replaces the known approvals.
+   *
+   * @return true if the approvals differ from the known ones
+   */
+  synchronized boolean update(Map<String, JSONObject> approvals) {
+    load();
+    if (this.approvals != null && same(this.approvals, approvals)) return false;
+
+    this.approvals = Collections.unmodifiableMap(new HashMap<>(approvals));
+    persist();
+    return true;
+  }
+
+  private static boolean same(Map<String, JSONObject> a, Map<String, JSONObject> b) {
+    if (a.size() != b.size()) return false;
+    for (Map.Entry<String, JSONObject> entry : a.entrySet()) {
+      JSONObject other = b.get(entry.getKey());
+      if (other == null || !entry.getValue().similar(other)) return false;
+    }
+    return true;
+  }
+
+  private void load() {
+    if (loaded) return;
+    loaded = true;
+    if (!Files.exists(path)) return;
+
+    try {
+      JSONObject stored = new JSONObject(new String(Files.readAllBytes(path), UTF_8));
+      Map<String, JSONObject> approvals = new HashMap<>();
+      for (String uri : stored.keySet()) approvals.put(uri, stored.getJSONObject(uri));
+      this.approvals = Collections.unmodifiableMap(approvals);
+    }
+    catch (IOException | JSONException e) {
+      logger.error("Could not read approvals " + path + ", waiting for the approvals feed", e);
+    }
+  }
+
+  private void persist() {
+    try {
+      Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(tmp, UTF_8)) {
+        new JSONObject(approvals).write(writer);
+      }
+      Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+    catch (IOException e) {
+      logger.error("Could not write approvals " + path, e);
+    }
+  }
+}
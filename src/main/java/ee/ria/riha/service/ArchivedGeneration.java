@@ -0,0 +1,68 @@
+package ee.ria.riha.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Catalogue of a generation kept in the snapshot history, assembled from its stored documents while it is written.
+ * Its documents are kept in the history until it is closed, even if the generation is pruned in the meantime.
+ */
+public class ArchivedGeneration implements Closeable {
+
+  private final long generation;
+  private final List<Path> documents;
+  private final long size;
+  private final String etag;
+  private final Consumer<ArchivedGeneration> release;
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  ArchivedGeneration(long generation, List<Path> documents, long size, String etag, Consumer<ArchivedGeneration> release) {
+    this.generation = generation;
+    this.documents = documents;
+    this.size = size;
+    this.etag = etag;
+    this.release = release;
+  }
+
+  public long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Length of the catalogue json in bytes.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  List<Path> getDocuments() {
+    return documents;
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    out.write('[');
+    for (int i = 0; i < documents.size(); i++) {
+      if (i > 0) out.write(',');
+      Files.copy(documents.get(i), out);
+    }
+    out.write(']');
+  }
+
+  /**
+   * Lets the history delete the documents once the generation is pruned.
+   */
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) release.accept(this);
+  }
+}
@@ -0,0 +1,223 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.models.Infosystem;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.DigestUtils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+
+/**
+ * Uris added, updated and removed by each published generation. The most recent generations are kept in memory and
+ * appended to a log file, so consumers can fetch only what changed since the generation they last saw. Published
+ * infosystems are compared by the digests of their json, the json itself is looked up from the published catalogue.
+ */
+class ChangeLog {
+
+  private Logger logger = LoggerFactory.getLogger(ChangeLog.class);
+
+  private final Path path;
+  private final int retainedGenerations;
+  private final Supplier<byte[]> publishedCatalogue;
+  private final Function<String, byte[]> publishedJson;
+
+  private final Deque<Change> changes = new ArrayDeque<>();
+  private Map<String, byte[]> published;
+  private long generation;
+  private int loggedChanges;
+
+  /**
+   * @param publishedCatalogue currently published json array, read once to compare the first saved generation with
+   * @param publishedJson json of a published infosystem by uri, in the generation that was recorded last
+   */
+  ChangeLog(Path path, int retainedGenerations, Supplier<byte[]> publishedCatalogue, Function<String, byte[]> publishedJson) {
+    this.path = path;
+    this.retainedGenerations = retainedGenerations;
+    this.publishedCatalogue = publishedCatalogue;
+    this.publishedJson = publishedJson;
+  }
+
+  static byte[] digest(Infosystem infosystem) {
+    return DigestUtils.md5Digest(infosystem.getJsonBytes());
+  }
+
+  synchronized long lastGeneration() {
+    load();
+    return generation;
+  }
+
+  /**
+   * @param current {@link #digest(Infosystem)} of every published infosystem by uri, in catalogue order
+   */
+  synchronized void record(long generation, Map<String, byte[]> current) {
+    load();
+    List<String> updated = new ArrayList<>();
+    for (Map.Entry<String, byte[]> infosystem : current.entrySet()) {
+      if (!Arrays.equals(infosystem.getValue(), published.get(infosystem.getKey()))) updated.add(infosystem.getKey());
+    }
+    List<String> removed = new ArrayList<>();
+    for (String uri : published.keySet()) {
+      if (!current.containsKey(uri)) removed.add(uri);
+    }
+
+    Change change = new Change(this.generation, generation, updated, removed);
+    changes.addLast(change);
+    while (changes.size() > retainedGenerations) changes.removeFirst();
+    published = current;
+    this.generation = generation;
+    append(change);
+  }
+
+  /**
+   * Builds a json object with the infosystems that were added or updated and the uris that were removed after the
+   * given generation. When the generation is unknown or older than the retained log, all published infosystems are
+   * returned with {@code "full": true}.
+   */
+  synchronized String since(Long since) {
+    load();
+    Set<String> updated = new LinkedHashSet<>();
+    Set<String> removed = new LinkedHashSet<>();
+    boolean full = !isRetained(since);
+
+    if (full) {
+      updated.addAll(published.keySet());
+    }
+    else {
+      for (Change change : changes) {
+        if (change.generation <= since) continue;
+        change.updated.forEach(uri -> { removed.remove(uri); updated.add(uri); });
+        change.removed.forEach(uri -> { updated.remove(uri); removed.add(uri); });
+      }
+    }
+
+    StringBuilder json = new StringBuilder()
+      .append("{\"generation\":").append(generation)
+      .append(",\"full\":").append(full)
+      .append(",\"updated\":[");
+    String separator = "";
+    for (String uri : updated) {
+      json.append(separator).append(new String(publishedJson.apply(uri), UTF_8));
+      separator = ",";
+    }
+    json.append("],\"removed\":").append(new JSONArray(removed)).append("}");
+    return json.toString();
+  }
+
+  private boolean isRetained(Long since) {
+    if (since == null || since > generation) return false;
+    if (since == generation) return true;
+
+    Change oldest = changes.peekFirst();
+    return oldest != null && oldest.previousGeneration >= 0 && since >= oldest.previousGeneration;
+  }
+
+  private void load() {
+    if (published != null) return;
+
+    published = new LinkedHashMap<>();
+    boolean readable = true;
+    try {
+      for (Infosystem infosystem : Infosystem.listOf(publishedCatalogue.get())) {
+        if (infosystem.getId() != null) published.put(infosystem.getId(), digest(infosystem));
+      }
+    }
+    catch (IllegalArgumentException e) {
+      logger.error("Could not read published catalogue, its history is unknown", e);
+      readable = false;
+    }
+
+    // without a log the history of an existing catalogue is unknown
+    generation = readable && published.isEmpty() ? 0 : -1;
+    if (!Files.exists(path)) return;
+
+    try {
+      for (String line : Files.readAllLines(path, UTF_8)) {
+        if (line.isEmpty()) continue;
+        Change change = Change.fromJson(new JSONObject(line));
+        loggedChanges++;
+        changes.addLast(change);
+        if (changes.size() > retainedGenerations) changes.removeFirst();
+        generation = change.generation;
+      }
+    }
+    catch (IOException | JSONException e) {
+      logger.error("Could not read change log " + path + ", starting a new log", e);
+      changes.clear();
+      loggedChanges = 0;
+      generation = -1;
+    }
+  }
+
+  private void append(Change change) {
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(path, UTF_8, CREATE, APPEND)) {
+        writer.write(change.toJson().toString());
+        writer.newLine();
+      }
+      if (++loggedChanges > 2 * retainedGenerations) compact();
+    }
+    catch (IOException e) {
+      logger.error("Could not write change log " + path, e);
+    }
+  }
+
+  private void compact() throws IOException {
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(tmp, UTF_8)) {
+      for (Change change : changes) {
+        writer.write(change.toJson().toString());
+        writer.newLine();
+      }
+    }
+    Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    loggedChanges = changes.size();
+  }
+
+  private static class Change {
+    final long previousGeneration;
+    final long generation;
+    final List<String> updated;
+    final List<String> removed;
+
+    Change(long previousGeneration, long generation, List<String> updated, List<String> removed) {
+      this.previousGeneration = previousGeneration;
+      this.generation = generation;
+      this.updated = updated;
+      this.removed = removed;
+    }
+
+    JSONObject toJson() {
+      return new JSONObject()
+        .put("previousGeneration", previousGeneration)
+        .put("generation", generation)
+        .put("updated", new JSONArray(updated))
+        .put("removed", new JSONArray(removed));
+    }
+
+    static Change fromJson(JSONObject json) {
+      return new Change(json.getLong("previousGeneration"), json.getLong("generation"),
+        strings(json.getJSONArray("updated")), strings(json.getJSONArray("removed")));
+    }
+
+    private static List<String> strings(JSONArray array) {
+      List<String> strings = new ArrayList<>(array.length());
+      for (int i = 0; i < array.length(); i++) strings.add(array.getString(i));
+      return strings;
+    }
+  }
+}
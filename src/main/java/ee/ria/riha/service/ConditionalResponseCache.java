@@ -0,0 +1,62 @@
+package ee.ria.riha.service;
+
+import org.apache.http.HttpRequest;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.apache.http.HttpHeaders.IF_MODIFIED_SINCE;
+import static org.apache.http.HttpHeaders.IF_NONE_MATCH;
+
+/**
+ * Remembers the cache validators of the last successfully processed response per url together with the result of
+ * processing it, so an unchanged resource can be reused after a {@code 304 Not Modified} without parsing it again.
+ */
+class ConditionalResponseCache {
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  void addConditionalHeaders(String url, HttpRequest request) {
+    Entry entry = entries.get(url);
+    if (entry == null) return;
+
+    if (entry.etag != null) request.setHeader(IF_NONE_MATCH, entry.etag);
+    if (entry.lastModified != null) request.setHeader(IF_MODIFIED_SINCE, entry.lastModified);
+  }
+
+  @SuppressWarnings("unchecked")
+  <T> T get(String url) {
+    Entry entry = entries.get(url);
+    return entry == null ? null : (T) entry.content;
+  }
+
+  /**
+   * Drops the cached content of url if it was processed with different settings, e.g. another owner whitelist.
+   */
+  void evictIfVariantChanged(String url, Object variant) {
+    entries.computeIfPresent(url, (key, entry) -> Objects.equals(entry.variant, variant) ? entry : null);
+  }
+
+  void put(String url, ProducerResponse response, Object content, Object variant) {
+    if (response.getEtag() == null && response.getLastModified() == null) {
+      entries.remove(url);
+      return;
+    }
+    entries.put(url, new Entry(response.getEtag(), response.getLastModified(), content, variant));
+  }
+
+  private static class Entry {
+    final String etag;
+    final String lastModified;
+    final Object content;
+    final Object variant;
+
+    Entry(String etag, String lastModified, Object content, Object variant) {
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.content = content;
+      this.variant = variant;
+    }
+  }
+}
@@ -0,0 +1,342 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.models.Infosystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Keeps a single infosystem per uri like {@link InfosystemMerger}, with memory bounded by the size of a run instead of
+ * the size of the catalogue.
+ * <p>
+ * Added records are appended to a spill file of their producer with their content hash. Their keys, the uri,
+ * timestamp and harvest position, are collected into runs of at most {@code runRecords} keys that are sorted and
+ * written to disk. The result merges the runs, marking the winner of every uri in a bit set of its producer, and then
+ * reads the winners back from the spill files in harvest order. Only one run of keys, a reader per run and a bit per
+ * record are held in memory.
+ */
+class ExternalInfosystemMerger implements Closeable {
+
+  private static final int BUFFER_BYTES = 64 * 1024;
+
+  /**
+   * Keys of a uri in the order of {@link InfosystemMerger}, so the first key of every uri is its winner.
+   */
+  private static final Comparator<Key> ORDER = Comparator
+    .comparing((Key key) -> key.uri, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+    .thenComparing((a, b) -> Long.compare(b.updatedSeconds, a.updatedSeconds))
+    .thenComparing((a, b) -> Integer.compare(b.updatedNanos, a.updatedNanos))
+    .thenComparingLong(key -> key.position);
+
+  private Logger logger = LoggerFactory.getLogger(ExternalInfosystemMerger.class);
+
+  private final Path directory;
+  private final int runRecords;
+  private final List<Key> keys = new ArrayList<>();
+  private final List<Path> runs = new ArrayList<>();
+  private final SortedMap<Integer, Integer> producers = new TreeMap<>();
+  private Spilled result;
+
+  /**
+   * @param parent directory to create the spill files of this merge in
+   * @param runRecords keys sorted in memory before they are written to a run
+   */
+  ExternalInfosystemMerger(Path parent, int runRecords) throws IOException {
+    Files.createDirectories(parent);
+    this.directory = Files.createTempDirectory(parent, "merge-");
+    this.runRecords = Math.max(1, runRecords);
+  }
+
+  /**
+   * Removes the spill files of merges left behind by a previous process.
+   */
+  static void clean(Path parent) throws IOException {
+    if (Files.isDirectory(parent)) delete(parent);
+  }
+
+  void add(int producerIndex, List<Infosystem> infosystems) {
+    if (result != null) throw new IllegalStateException("Merge has already finished");
+    if (producers.putIfAbsent(producerIndex, infosystems.size()) != null) {
+      throw new IllegalArgumentException("Producer " + producerIndex + " has already been added");
+    }
+
+    try (DataOutputStream out = output(records(producerIndex))) {
+      for (int i = 0; i < infosystems.size(); i++) {
+        Infosystem infosystem = infosystems.get(i);
+        out.writeInt(infosystem.getJsonBytes().length);
+        out.write(infosystem.getJsonBytes());
+        out.writeUTF(infosystem.getContentHash() == null ? "" : infosystem.getContentHash());
+        keys.add(Key.of(infosystem, (long) producerIndex << 32 | i));
+        if (keys.size() >= runRecords) writeRun();
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void writeRun() throws IOException {
+    keys.sort(ORDER);
+    Path run = directory.resolve("run-" + runs.size());
+    try (DataOutputStream out = output(run)) {
+      out.writeInt(keys.size());
+      for (Key key : keys) key.write(out);
+    }
+    runs.add(run);
+    keys.clear();
+  }
+
+  /**
+   * Merges the runs. The result reads the winners from disk every time it is iterated and stays readable until the
+   * merger is closed.
+   */
+  Spilled result() {
+    if (result != null) return result;
+
+    Map<Integer, BitSet> winners = new HashMap<>();
+    int count = 0;
+    List<Run> readers = new ArrayList<>();
+    try {
+      if (!keys.isEmpty()) writeRun();
+      PriorityQueue<Run> queue = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> ORDER.compare(a.key, b.key));
+      for (Path path : runs) {
+        Run run = new Run(input(path));
+        readers.add(run);
+        if (run.next()) queue.add(run);
+      }
+
+      Key previous = null;
+      while (!queue.isEmpty()) {
+        Run run = queue.poll();
+        Key key = run.key;
+        if (previous == null || !Objects.equals(previous.uri, key.uri)) {
+          winners.computeIfAbsent((int) (key.position >>> 32), producer -> new BitSet()).set((int) key.position);
+          count++;
+        }
+        previous = key;
+        if (run.next()) queue.add(run);
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    finally {
+      for (Run run : readers) run.close();
+    }
+
+    logger.debug("Merged {} runs into {} infosystems", runs.size(), count);
+    for (Path run : runs) run.toFile().delete();
+    runs.clear();
+    result = new Spilled(winners, count);
+    return result;
+  }
+
+  /**
+   * Deletes the spill files, the result cannot be read afterwards.
+   */
+  @Override
+  public void close() {
+    try {
+      delete(directory);
+    }
+    catch (IOException e) {
+      logger.warn("Could not delete spill files in " + directory, e);
+    }
+  }
+
+  private Path records(int producerIndex) {
+    return directory.resolve("producer-" + producerIndex);
+  }
+
+  private static DataOutputStream output(Path path) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), BUFFER_BYTES));
+  }
+
+  private static DataInputStream input(Path path) throws IOException {
+    return new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_BYTES));
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) Files.deleteIfExists(path);
+    }
+    catch (NoSuchFileException e) {
+      // already deleted
+    }
+  }
+
+  /**
+   * Merged infosystems in harvest order, read from the spill files by every iterator. Closing it closes the merger.
+   */
+  class Spilled extends AbstractCollection<Infosystem> implements Closeable {
+    private final Map<Integer, BitSet> winners;
+    private final int size;
+
+    private Spilled(Map<Integer, BitSet> winners, int size) {
+      this.winners = winners;
+      this.size = size;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    /**
+     * The iterator closes its spill file when it has been read to the end.
+     */
+    @Override
+    public Iterator<Infosystem> iterator() {
+      return new Reader(winners);
+    }
+
+    @Override
+    public void close() {
+      ExternalInfosystemMerger.this.close();
+    }
+  }
+
+  private class Reader implements Iterator<Infosystem> {
+    private final Map<Integer, BitSet> winners;
+    private final Iterator<Map.Entry<Integer, Integer>> producers = ExternalInfosystemMerger.this.producers.entrySet().iterator();
+    private DataInputStream in;
+    private BitSet producerWinners;
+    private int remaining;
+    private int position;
+    private Infosystem next;
+
+    Reader(Map<Integer, BitSet> winners) {
+      this.winners = winners;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == null) next = read();
+      return next != null;
+    }
+
+    @Override
+    public Infosystem next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      Infosystem infosystem = next;
+      next = null;
+      return infosystem;
+    }
+
+    private Infosystem read() {
+      try {
+        while (true) {
+          if (in == null) {
+            if (!producers.hasNext()) return null;
+            Map.Entry<Integer, Integer> producer = producers.next();
+            producerWinners = winners.get(producer.getKey());
+            if (producerWinners == null) continue;
+            in = input(records(producer.getKey()));
+            remaining = producer.getValue();
+            position = 0;
+          }
+          if (position == remaining || producerWinners.nextSetBit(position) < 0) {
+            in.close();
+            in = null;
+            continue;
+          }
+
+          int length = in.readInt();
+          if (!producerWinners.get(position++)) {
+            if (in.skipBytes(length) != length) throw new EOFException("Truncated spill file");
+            in.readUTF();
+            continue;
+          }
+          byte[] json = new byte[length];
+          in.readFully(json);
+          String contentHash = in.readUTF();
+          return new Infosystem(json, contentHash.isEmpty() ? null : contentHash);
+        }
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Merge key of a record, its timestamp is kept at full precision as epoch seconds and nanoseconds like in
+   * {@link Infosystem}.
+   */
+  private static class Key {
+    final String uri;
+    final long updatedSeconds;
+    final int updatedNanos;
+    final long position;
+
+    Key(String uri, long updatedSeconds, int updatedNanos, long position) {
+      this.uri = uri;
+      this.updatedSeconds = updatedSeconds;
+      this.updatedNanos = updatedNanos;
+      this.position = position;
+    }
+
+    static Key of(Infosystem infosystem, long position) {
+      return new Key(infosystem.getId(), infosystem.getUpdatedSeconds(), infosystem.getUpdatedNanos(), position);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      byte[] uri = this.uri == null ? null : this.uri.getBytes(UTF_8);
+      out.writeInt(uri == null ? -1 : uri.length);
+      if (uri != null) out.write(uri);
+      out.writeLong(updatedSeconds);
+      out.writeInt(updatedNanos);
+      out.writeLong(position);
+    }
+
+    static Key read(DataInputStream in) throws IOException {
+      int length = in.readInt();
+      String uri = null;
+      if (length >= 0) {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        uri = new String(bytes, UTF_8);
+      }
+      return new Key(uri, in.readLong(), in.readInt(), in.readLong());
+    }
+  }
+
+  /**
+   * Sorted run of keys, read one key at a time.
+   */
+  private static class Run implements Closeable {
+    private final DataInputStream in;
+    private int remaining;
+    Key key;
+
+    Run(DataInputStream in) throws IOException {
+      this.in = in;
+      this.remaining = in.readInt();
+    }
+
+    boolean next() throws IOException {
+      if (remaining == 0) return false;
+      key = Key.read(in);
+      remaining--;
+      return true;
+    }
+
+    @Override
+    public void close() {
+      try {
+        in.close();
+      }
+      catch (IOException e) {
+        // only read
+      }
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package ee.ria.riha.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Selection of fields of infosystem documents, given as comma separated paths of nested object fields, e.g.
+ * {@code uri,owner.code,meta.approval_status}. A selected field is copied with everything nested in it, fields that a
+ * document does not have are left out. The catalogue is projected in a single pass from parser to generator, without
+ * building the documents.
+ */
+class FieldProjection {
+
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  static final int MAX_PATHS = 32;
+  static final int MAX_PATH_LENGTH = 128;
+
+  private final Field root = new Field(new TreeMap<>());
+
+  private FieldProjection() {
+  }
+
+  /**
+   * @return the projection or null if no fields are given
+   * @throws IllegalArgumentException if a path has an empty field name, is longer than {@link #MAX_PATH_LENGTH} or
+   * there are more than {@link #MAX_PATHS} paths
+   */
+  static FieldProjection parse(String fields) {
+    if (fields == null) return null;
+
+    FieldProjection projection = new FieldProjection();
+    int paths = 0;
+    for (String path : fields.split(",")) {
+      if (path.trim().isEmpty()) continue;
+      if (++paths > MAX_PATHS) throw new IllegalArgumentException("More than " + MAX_PATHS + " fields");
+      if (path.trim().length() > MAX_PATH_LENGTH) throw new IllegalArgumentException("Field longer than " + MAX_PATH_LENGTH + " characters");
+      String[] names = path.trim().split("\\.", -1);
+      for (String name : names) {
+        if (name.isEmpty()) throw new IllegalArgumentException("Invalid field " + path.trim());
+      }
+      projection.root.add(names, 0);
+    }
+    return projection.root.children.isEmpty() ? null : projection;
+  }
+
+  /**
+   * Normalized paths, the same for every way of giving the same selection.
+   */
+  String getKey() {
+    List<String> paths = new ArrayList<>();
+    root.paths("", paths);
+    return String.join(",", paths);
+  }
+
+  /**
+   * Projects a json array of infosystems, elements that are not json objects are skipped.
+   */
+  PublishedSnapshot apply(InputStream catalogue) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonParser parser = jsonFactory.createParser(catalogue);
+         JsonGenerator generator = jsonFactory.createGenerator(out)) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) throw new IllegalArgumentException("Expected json array");
+
+      generator.writeStartArray();
+      JsonToken token;
+      while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+        if (token == null) throw new IllegalArgumentException("Unexpected end of json array");
+        if (token != JsonToken.START_OBJECT) {
+          parser.skipChildren();
+          continue;
+        }
+        generator.writeStartObject();
+        copy(parser, generator, root);
+        generator.writeEndObject();
+      }
+      generator.writeEndArray();
+    }
+    return PublishedSnapshot.of(out.toByteArray());
+  }
+
+  private static void copy(JsonParser parser, JsonGenerator generator, Field field) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      Field selected = field.children.get(name);
+      if (selected == null) {
+        parser.skipChildren();
+      }
+      else if (selected.children == null) {
+        generator.writeFieldName(name);
+        generator.copyCurrentStructure(parser);
+      }
+      else if (token == JsonToken.START_OBJECT) {
+        generator.writeObjectFieldStart(name);
+        copy(parser, generator, selected);
+        generator.writeEndObject();
+      }
+      else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  /**
+   * Selected field, either whole or only the nested fields among its children.
+   */
+  private static class Field {
+    final Map<String, Field> children;
+
+    Field(Map<String, Field> children) {
+      this.children = children;
+    }
+
+    void add(String[] names, int depth) {
+      if (children == null) return;
+
+      String name = names[depth];
+      if (depth == names.length - 1) {
+        children.put(name, new Field(null));
+        return;
+      }
+      children.computeIfAbsent(name, key -> new Field(new TreeMap<>())).add(names, depth + 1);
+    }
+
+    void paths(String prefix, List<String> paths) {
+      for (Map.Entry<String, Field> child : children.entrySet()) {
+        if (child.getValue().children == null) paths.add(prefix + child.getKey());
+        else child.getValue().paths(prefix + child.getKey() + ".", paths);
+      }
+    }
+  }
+}
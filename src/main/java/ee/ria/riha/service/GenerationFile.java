@@ -0,0 +1,45 @@
+package ee.ria.riha.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Open handle on a published generation file. The handle keeps reading the generation it was opened on even after a
+ * newer generation has been renamed over it.
+ */
+public class GenerationFile implements Closeable {
+
+  private final FileChannel channel;
+  private final long size;
+  private final String etag;
+
+  GenerationFile(FileChannel channel, long size, String etag) {
+    this.channel = channel;
+    this.size = size;
+    this.etag = etag;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  public void transferTo(WritableByteChannel target) throws IOException {
+    long position = 0;
+    while (position < size) {
+      long transferred = channel.transferTo(position, size - position, target);
+      if (transferred <= 0) break;
+      position += transferred;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
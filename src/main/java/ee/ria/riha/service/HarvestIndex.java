@@ -0,0 +1,155 @@
+package ee.ria.riha.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import ee.ria.riha.models.Infosystem;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Index of the last successful harvest: uri to content hash of every published infosystem. The index is persisted, so
+ * records that were already validated are not validated again after a restart. Unless infosystems are merged on disk,
+ * the harvested and published infosystems of the last run are kept in memory to be reused as they are.
+ */
+class HarvestIndex {
+
+  private Logger logger = LoggerFactory.getLogger(HarvestIndex.class);
+
+  private final Path path;
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private volatile Map<String, Entry> entries;
+  private String schemaVersion;
+
+  HarvestIndex(Path path) {
+    this.path = path;
+  }
+
+  /**
+   * Discards the index if it was built with another version of the schema.
+   */
+  synchronized void useSchema(String schemaVersion) {
+    load();
+    if (!Objects.equals(this.schemaVersion, schemaVersion)) {
+      if (!entries.isEmpty()) logger.info("Schema changed, all infosystems will be validated");
+      entries = new HashMap<>();
+      this.schemaVersion = schemaVersion;
+    }
+  }
+
+  boolean isUnchanged(String uri, String contentHash) {
+    Entry entry = entries().get(uri);
+    return entry != null && entry.contentHash.equals(contentHash);
+  }
+
+  Infosystem harvested(String uri, String contentHash) {
+    Entry entry = entries().get(uri);
+    return entry != null && entry.contentHash.equals(contentHash) ? entry.harvested : null;
+  }
+
+  Infosystem published(Infosystem harvested, JSONObject approval) {
+    Entry entry = entries().get(harvested.getId());
+    if (entry == null || entry.harvested != harvested) return null;
+    if (entry.approval == null ? approval != null : approval == null || !entry.approval.similar(approval)) return null;
+    return entry.published;
+  }
+
+  /**
+   * Replaces the index with the given harvest and logs how it differs from the previous one.
+   *
+   * @param harvested merged infosystems as harvested from producers
+   * @param published the same infosystems with approvals applied, in the same order, or null to keep only the content
+   * hashes and no infosystems in memory
+   */
+  synchronized void update(Iterable<Infosystem> harvested, List<Infosystem> published, Map<String, JSONObject> approvalsById) {
+    Map<String, Entry> previous = entries();
+    Map<String, Entry> updated = new HashMap<>(previous.size() * 4 / 3 + 1);
+    int added = 0, changed = 0, unchanged = 0;
+
+    int i = 0;
+    for (Infosystem infosystem : harvested) {
+      String uri = infosystem.getId();
+      Entry entry = previous.get(uri);
+      if (entry == null) added++;
+      else if (entry.contentHash.equals(infosystem.getContentHash())) unchanged++;
+      else changed++;
+
+      updated.put(uri, published == null
+        ? new Entry(infosystem.getContentHash(), null, null, null)
+        : new Entry(infosystem.getContentHash(), infosystem, approvalsById.get(uri), published.get(i++)));
+    }
+    int removed = previous.size() - changed - unchanged;
+    entries = updated;
+
+    logger.info("Harvest index: {} new, {} changed, {} unchanged, {} removed infosystems", added, changed, unchanged, removed);
+    persist();
+  }
+
+  private Map<String, Entry> entries() {
+    Map<String, Entry> current = entries;
+    if (current != null) return current;
+
+    synchronized (this) {
+      load();
+      return entries;
+    }
+  }
+
+  private void load() {
+    if (entries != null) return;
+
+    Map<String, Entry> loaded = new HashMap<>();
+    if (Files.exists(path)) {
+      try {
+        ObjectNode index = (ObjectNode) objectMapper.readTree(path.toFile());
+        schemaVersion = index.path("schemaVersion").asText(null);
+        index.path("entries").fields().forEachRemaining(field -> loaded.put(field.getKey(),
+          new Entry(field.getValue().path("hash").asText(), null, null, null)));
+      }
+      catch (IOException | ClassCastException e) {
+        logger.error("Could not read harvest index " + path + ", starting with an empty index", e);
+        loaded.clear();
+      }
+    }
+    entries = loaded;
+  }
+
+  private void persist() {
+    ObjectNode index = objectMapper.createObjectNode();
+    index.put("schemaVersion", schemaVersion);
+    ObjectNode entriesNode = index.putObject("entries");
+    entries.forEach((uri, entry) -> entriesNode.putObject(uri).put("hash", entry.contentHash));
+
+    try {
+      Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+      objectMapper.writeValue(tmp.toFile(), index);
+      Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+    catch (IOException e) {
+      logger.error("Could not write harvest index " + path, e);
+    }
+  }
+
+  private static class Entry {
+    final String contentHash;
+    final Infosystem harvested;
+    final JSONObject approval;
+    final Infosystem published;
+
+    Entry(String contentHash, Infosystem harvested, JSONObject approval, Infosystem published) {
+      this.contentHash = contentHash;
+      this.harvested = harvested;
+      this.approval = approval;
+      this.published = published;
+    }
+  }
+}
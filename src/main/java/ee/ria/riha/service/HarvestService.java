@@ -1,29 +1,58 @@
 package ee.ria.riha.service;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.github.fge.jsonschema.core.report.ProcessingReport;
-import com.github.fge.jsonschema.main.JsonSchemaFactory;
 import ee.ria.riha.models.Infosystem;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
 
+import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.Files;
+import java.io.InterruptedIOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-
-import static java.util.Arrays.asList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
-import static org.apache.http.client.fluent.Request.Get;
+import static org.apache.http.HttpHeaders.ETAG;
+import static org.apache.http.HttpHeaders.LAST_MODIFIED;
+import static org.apache.http.HttpStatus.SC_NOT_MODIFIED;
 
 @Service
 public class HarvestService {
@@ -36,143 +65,610 @@ public class HarvestService {
   @Value("${legacyProducer.url}")
   String legacyProducerUrl;
 
-  Properties producers;
+  @Value("${harvester.threads:8}")
+  int threads = 8;
+
+  @Value("${harvester.producerTimeoutSeconds:30}")
+  int producerTimeoutSeconds = 30;
+
+  @Value("${harvester.deadlineSeconds:55}")
+  int deadlineSeconds = 55;
+
+  @Value("${harvester.incremental:false}")
+  boolean incremental;
+
+  @Value("${harvester.recordThreads:0}")
+  int recordThreads;
+
+  @Value("${harvester.recordBatchSize:1024}")
+  int recordBatchSize = 1024;
+
+  @Value("${harvester.spillRecords:0}")
+  int spillRecords;
+
+  @Value("${harvester.intervalSeconds:0}")
+  int intervalSeconds;
+
+  @Value("${harvester.jitterSeconds:0}")
+  int jitterSeconds;
+
+  @Value("${harvester.backoffSeconds:60}")
+  int backoffSeconds = 60;
+
+  @Value("${harvester.maxBackoffSeconds:3600}")
+  int maxBackoffSeconds = 3600;
+
+  @Value("${harvester.circuitBreakerFailures:5}")
+  int circuitBreakerFailures = 5;
+
+  @Value("${harvester.circuitBreakerOpenSeconds:1800}")
+  int circuitBreakerOpenSeconds = 1800;
+
+  @Value("${harvester.lastKnownGoodHours:168}")
+  int lastKnownGoodHours = 168;
+
+  @Value("${http.maxConnections:64}")
+  int httpMaxConnections = 64;
+
+  @Value("${http.maxConnectionsPerRoute:4}")
+  int httpMaxConnectionsPerRoute = 4;
+
+  @Value("${http.connectTimeoutSeconds:10}")
+  int httpConnectTimeoutSeconds = 10;
+
+  @Value("${http.keepAliveSeconds:300}")
+  int httpKeepAliveSeconds = 300;
+
+  @Value("${http.maxBodyMegabytes:256}")
+  int httpMaxBodyMegabytes = 256;
+
+  ProducerRegistry producerRegistry = new ProducerRegistry(Paths.get("producers.db"));
+
+  JsonSchemaValidator schemaValidator = new JsonSchemaValidator(Paths.get("infosystem-schema.json"));
+
+  /**
+   * Records converted by one fork join task before a batch is not split any further.
+   */
+  private static final int RECORDS_PER_TASK = 32;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private ProducerHttpClient httpClient;
+
+  private ForkJoinPool recordPool;
+
+  private RecordProcessor recordProcessor;
+
+  private final ConditionalResponseCache responseCache = new ConditionalResponseCache();
+
+  HarvestIndex harvestIndex = new HarvestIndex(Paths.get("harvest-index.json"));
+
+  ApprovalStore approvalStore = new ApprovalStore(Paths.get("approvals.json"));
+
+  private Collection<Infosystem> harvested;
+
+  private final ReentrantLock harvestLock = new ReentrantLock();
+
+  final Map<String, ProducerSchedule> schedules = new ConcurrentHashMap<>();
+
+  ProducerShardStore shardStore = new ProducerShardStore(Paths.get("producer-shards"));
+
+  Path spillDirectory = Paths.get("harvest-spill");
+
+  private boolean spillPrepared;
 
   @Autowired InfosystemStorageService infosystemStorageService;
 
+  @Autowired MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
   @Scheduled(cron = "${harvester.cron}")
   public void harvestInfosystems() {
-    logger.info("Started");
-    Map<String, JSONObject> approvals;
-    try {
-      approvals = getApprovals();
-    } catch (UnreachableResourceException e) {
-      logger.info("Skipping harvesting - could not get approval information!", e);
+    if (!harvestLock.tryLock()) {
+      logger.warn("Skipping harvesting - previous harvest is still running");
       return;
     }
-    List<Infosystem> infosystems = addApprovals(getInfosystems(), approvals);
-    infosystemStorageService.save(infosystems);
-    logger.info("Finished");
+    try {
+      logger.info("Started");
+      long started = System.nanoTime();
+      updateApprovals();
+      if (incremental) harvestIndex.useSchema(schemaVersion());
+
+      publish(getInfosystems(), true);
+      meterRegistry.timer("harvester.duration").record(System.nanoTime() - started, NANOSECONDS);
+      logger.info("Finished");
+    }
+    finally {
+      harvestLock.unlock();
+    }
   }
 
-  private List<Infosystem> getInfosystems() {
-    List<Infosystem> allInfosystems = new ArrayList<>();
-    if (isNotBlank(legacyProducerUrl)) {
-      allInfosystems.addAll(getInfosystemsWithoutOwnerRestriction(legacyProducerUrl));
+  /**
+   * Fetches approvals and republishes the last harvested infosystems if approvals have changed, without fetching
+   * producer data again.
+   */
+  @Scheduled(fixedDelayString = "${approvals.refreshIntervalMillis:10000}")
+  public void refreshApprovals() {
+    if (updateApprovals()) republish();
+  }
+
+  private synchronized void republish() {
+    if (harvested == null) return;
+
+    logger.info("Approvals changed, republishing {} infosystems", harvested.size());
+    publish(harvested, false);
+  }
+
+  /**
+   * @return true if approvals were fetched and differ from the last known ones
+   */
+  private boolean updateApprovals() {
+    try {
+      long started = System.nanoTime();
+      Map<String, JSONObject> approvals = getApprovals();
+      stageTimer("approvals").record(System.nanoTime() - started, NANOSECONDS);
+      return approvalStore.update(approvals);
     }
+    catch (UnreachableResourceException e) {
+      logger.warn("Could not get approval information, using last known approvals", e);
+      return false;
+    }
+  }
 
-    initProducers();
+  /**
+   * Joins the last known approvals with harvested infosystems and saves the result. Harvested infosystems are
+   * remembered, so they can be published again when approvals change. Nothing is saved without approvals.
+   * <p>
+   * Infosystems merged on disk are joined with approvals one at a time while they are saved, so the approval join is
+   * timed as part of saving them. Their harvest index keeps only content hashes.
+   *
+   * @param harvest whether the infosystems have just been harvested, the harvest index is only updated then
+   */
+  private synchronized void publish(Collection<Infosystem> harvested, boolean harvest) {
+    if (this.harvested != harvested) release(this.harvested);
+    this.harvested = harvested;
+    Map<String, JSONObject> approvals = approvalStore.get();
+    if (approvals == null) {
+      logger.info("Not publishing harvested infosystems - approval information has never been available");
+      return;
+    }
 
-    for (String url : producers.stringPropertyNames()) {
-      List<String> allowedOwners = asList(producers.getProperty(url).split(","));
-      allInfosystems.addAll(getInfosystems(url, allowedOwners));
+    if (spillRecords > 0) {
+      stageTimer("save").record(() -> infosystemStorageService.saveStreaming(withApprovals(harvested, approvals)));
+      if (harvest && incremental) harvestIndex.update(harvested, null, approvals);
+      return;
     }
+    List<Infosystem> infosystems = stageTimer("approval_join").record(() -> addApprovals(harvested, approvals));
+    stageTimer("save").record(() -> infosystemStorageService.save(infosystems));
+    if (harvest && incremental) harvestIndex.update(harvested, infosystems, approvals);
+  }
 
-    return merge(allInfosystems);
+  /**
+   * Deletes the spill files of infosystems that were merged on disk.
+   */
+  private static void release(Collection<Infosystem> harvested) {
+    if (harvested instanceof ExternalInfosystemMerger.Spilled) ((ExternalInfosystemMerger.Spilled) harvested).close();
   }
 
-  private List<Infosystem> getInfosystemsWithoutOwnerRestriction(String url) {
-    return getInfosystems(url, null);
+  private Timer stageTimer(String stage) {
+    return meterRegistry.timer("harvester.stage", "stage", stage);
   }
 
-  private List<Infosystem> getInfosystems(String url, List<String> allowedOwners) {
-    JSONArray infosystems;
+  /**
+   * Fetches the producers that are due according to their schedules and merges them with the last good infosystems
+   * of producers that are not due or failed. Last good infosystems older than {@code lastKnownGoodHours} are left out.
+   * <p>
+   * With {@code spillRecords} set, records are merged on disk by {@link ExternalInfosystemMerger}, so the harvest holds
+   * the records of a single producer instead of the whole catalogue.
+   */
+  private Collection<Infosystem> getInfosystems() {
+    Timer merge = stageTimer("merge");
+    if (spillRecords <= 0) {
+      InfosystemMerger merger = new InfosystemMerger();
+      harvestProducers((index, infosystems) -> merge.record(() -> merger.add(index, infosystems)));
+      return merge.record(() -> merger.result());
+    }
+
+    ExternalInfosystemMerger merger = spillMerger();
     try {
-      infosystems = getData(url);
+      harvestProducers((index, infosystems) -> merge.record(() -> merger.add(index, infosystems)));
+      return merge.record(() -> merger.result());
     }
-    catch (UnreachableResourceException e) {
-      logger.error("Skipping producer - failed to get data from: " + url);
-      return Collections.emptyList();
+    catch (RuntimeException e) {
+      merger.close();
+      throw e;
     }
+  }
 
-    List<Infosystem> result = new ArrayList<>();
-    int added = 0;
-    for (int i = 0; i < infosystems.length(); i++) {
-      JSONObject infosystemJson = infosystems.getJSONObject(i);
-      if (!validateInfosystem(infosystemJson.toString())) {
-        logger.warn("Skipping infosystem, invalid json: " + infosystemJson.toString());
+  /**
+   * Starts a merge on disk. Before the first one, spill files left behind by a previous process are removed and last
+   * good infosystems are no longer kept in memory.
+   */
+  private ExternalInfosystemMerger spillMerger() {
+    try {
+      if (!spillPrepared) {
+        ExternalInfosystemMerger.clean(spillDirectory);
+        shardStore.setCaching(false);
+        spillPrepared = true;
+      }
+      return new ExternalInfosystemMerger(spillDirectory, spillRecords);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void harvestProducers(BiConsumer<Integer, List<Infosystem>> merger) {
+    List<String> urls = new ArrayList<>();
+    List<Set<String>> allowedOwners = new ArrayList<>();
+    ProducerSchedule.Settings defaults = new ProducerSchedule.Settings(SECONDS.toMillis(intervalSeconds),
+      SECONDS.toMillis(jitterSeconds), SECONDS.toMillis(backoffSeconds), SECONDS.toMillis(maxBackoffSeconds),
+      circuitBreakerFailures, SECONDS.toMillis(circuitBreakerOpenSeconds));
+    if (isNotBlank(legacyProducerUrl)) {
+      urls.add(legacyProducerUrl);
+      allowedOwners.add(null);
+      schedule(legacyProducerUrl, defaults);
+    }
+
+    for (ProducerRegistry.Producer producer : producerRegistry.current()) {
+      urls.add(producer.url);
+      allowedOwners.add(producer.owners);
+      schedule(producer.url, producer.settings(defaults));
+    }
+    schedules.keySet().retainAll(urls);
+    shardStore.retain(urls);
+
+    long now = System.currentTimeMillis();
+    List<Integer> due = new ArrayList<>();
+    for (int i = 0; i < urls.size(); i++) {
+      ProducerSchedule schedule = schedules.get(urls.get(i));
+      if (schedule.isDue(now)) {
+        due.add(i);
         continue;
       }
+      meterRegistry.counter("harvester.producer.skipped", "producer", urls.get(i), "state", schedule.getState().name().toLowerCase()).increment();
+      addLastGood(merger, i, urls.get(i), now);
+    }
 
-      Infosystem infosystem = new Infosystem(infosystemJson);
-      if (allowedOwners != null && !allowedOwners.contains(infosystem.getOwner())) {
-        logger.warn("Skipping infosystem, owner code '{}' not whitelisted for url: {}", infosystem.getOwner(), url);
+    Set<Integer> succeeded = new HashSet<>();
+    new ProducerHarvestExecutor(threads, SECONDS.toMillis(producerTimeoutSeconds), SECONDS.toMillis(deadlineSeconds))
+      .run(due.stream().map(urls::get).collect(toList()), j -> getInfosystems(urls.get(due.get(j)), allowedOwners.get(due.get(j))), (j, infosystems) -> {
+        int index = due.get(j);
+        succeeded.add(index);
+        shardStore.put(urls.get(index), infosystems, now);
+        merger.accept(index, infosystems);
+      });
+
+    for (int index : due) {
+      ProducerSchedule schedule = schedules.get(urls.get(index));
+      if (succeeded.contains(index)) {
+        schedule.succeeded(now);
         continue;
       }
+      schedule.failed(now);
+      addLastGood(merger, index, urls.get(index), now);
+      if (schedule.getState() == ProducerSchedule.State.OPEN) {
+        logger.warn("Circuit open for producer {} after {} failures in a row", urls.get(index), schedule.getFailures());
+      }
+    }
+  }
 
-      result.add(infosystem);
-      added++;
+  private void addLastGood(BiConsumer<Integer, List<Infosystem>> merger, int index, String url, long now) {
+    List<Infosystem> last = shardStore.get(url);
+    if (last == null) return;
+    if (lastKnownGoodHours > 0 && now - shardStore.lastSucceeded(url) > HOURS.toMillis(lastKnownGoodHours)) {
+      logger.warn("Leaving out producer {} - last good harvest is older than {} hours", url, lastKnownGoodHours);
+      return;
     }
-    logger.info("{} processing finished, added {}/{} infosystems", url, added, infosystems.length());
-    return result;
+    merger.accept(index, last);
   }
 
-  private List<Infosystem> merge(List<Infosystem> infosystems) {
-    List<Infosystem> result = new ArrayList<>();
+  private void schedule(String url, ProducerSchedule.Settings settings) {
+    schedules.computeIfAbsent(url, key -> new ProducerSchedule(settings)).setSettings(settings);
+  }
 
-    for (Infosystem infosystem : infosystems) {
-      Infosystem existing = result.stream().filter(i -> i.getId().equals(infosystem.getId())).findAny().orElse(null);
 
-      if (existing == null) {
-        result.add(infosystem);
-      } else if (infosystem.getUpdated().isAfter(existing.getUpdated())) {
-        result.remove(existing);
-        result.add(infosystem);
+  private List<Infosystem> getInfosystems(String url, Set<String> allowedOwners) {
+    responseCache.evictIfVariantChanged(url, allowedOwners);
+
+    ProducerMeters meters = new ProducerMeters(meterRegistry, url);
+    List<Infosystem> result = new ArrayList<>();
+    int total = 0;
+    long started = System.nanoTime();
+    try (ProducerResponse response = openData(url)) {
+      meters.fetch.record(System.nanoTime() - started, NANOSECONDS);
+      if (response.isNotModified()) {
+        List<Infosystem> cached = notModifiedInfosystems(url);
+        meters.response("not_modified");
+        logger.info("{} not modified, reusing {} infosystems", url, cached.size());
+        return cached;
+      }
+
+      long parseNanos = 0;
+      long parseStarted = System.nanoTime();
+      try (JsonParser parser = objectMapper.getFactory().createParser(response.getBody())) {
+        if (parser.nextToken() != JsonToken.START_ARRAY) throw new JsonParseException(parser, "Expected json array");
+
+        List<JsonNode> batch = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+          if (token == null) throw new JsonParseException(parser, "Unexpected end of json array");
+          total++;
+          batch.add(objectMapper.readTree(parser));
+          if (batch.size() >= recordBatchSize) {
+            parseNanos += System.nanoTime() - parseStarted;
+            addInfosystems(batch, url, allowedOwners, meters, result);
+            parseStarted = System.nanoTime();
+          }
+        }
+        parseNanos += System.nanoTime() - parseStarted;
+        addInfosystems(batch, url, allowedOwners, meters, result);
       }
+      finally {
+        meters.parse.record(parseNanos, NANOSECONDS);
+      }
+      meters.logSkipped(logger);
+      responseCache.put(url, response, spillRecords > 0 ? null : result, allowedOwners);
+    }
+    catch (UnreachableResourceException | IOException e) {
+      meters.response("failed");
+      logger.error("Skipping producer - failed to get data from: " + url);
+      return null;
     }
+    meters.response("ok");
+    logger.info("{} processing finished, added {}/{} infosystems", url, result.size(), total);
     return result;
   }
 
-  void initProducers() {
-    Path path = Paths.get("producers.db");
-    if (!path.toFile().exists()) return;
+  /**
+   * Converts a batch of parsed records in parallel and adds the accepted ones in the order of the batch.
+   */
+  private void addInfosystems(List<JsonNode> batch, String url, Set<String> allowedOwners, ProducerMeters meters,
+                              List<Infosystem> result) throws InterruptedIOException {
+    if (Thread.interrupted()) throw new InterruptedIOException("Harvest of " + url + " was cancelled");
+
+    List<Infosystem> infosystems = recordProcessor().process(batch, json -> toInfosystem(json, url, allowedOwners, meters));
+    for (Infosystem infosystem : infosystems) {
+      if (infosystem != null) result.add(infosystem);
+    }
+    batch.clear();
+  }
+
+  /**
+   * Infosystems of a producer that has not been modified. While merging on disk they are not kept with the cache
+   * validators but read back from the producer's shard.
+   */
+  private List<Infosystem> notModifiedInfosystems(String url) throws UnreachableResourceException {
+    if (spillRecords <= 0) return notModifiedContent(url);
+
+    List<Infosystem> last = shardStore.get(url);
+    if (last == null) throw new UnreachableResourceException(new IllegalStateException("Not modified response without a shard"));
+    return last;
+  }
+
+  private synchronized RecordProcessor recordProcessor() {
+    if (recordProcessor == null) {
+      recordPool = new ForkJoinPool(recordThreads > 0 ? recordThreads : Runtime.getRuntime().availableProcessors());
+      recordProcessor = new RecordProcessor(recordPool, RECORDS_PER_TASK);
+    }
+    return recordProcessor;
+  }
+
+  private Infosystem toInfosystem(JsonNode infosystemJson, String url, Set<String> allowedOwners, ProducerMeters meters) {
+    byte[] serialized = serialize(infosystemJson);
+    if (serialized == null) return null;
+    String contentHash = incremental ? DigestUtils.md5DigestAsHex(serialized) : null;
+    String uri = infosystemJson.path("uri").asText();
+    boolean unchanged = contentHash != null && harvestIndex.isUnchanged(uri, contentHash);
+
+    if (!unchanged && !meters.validate(() -> validateInfosystem(infosystemJson))) {
+      meters.invalid(infosystemJson);
+      return null;
+    }
+
+    String owner = infosystemJson.path("owner").path("code").asText();
+    if (allowedOwners != null && !allowedOwners.contains(owner)) {
+      meters.notWhitelisted(owner);
+      return null;
+    }
 
-    try (InputStream inputStream = Files.newInputStream(path)) {
-      producers = new Properties();
-      producers.load(inputStream);
+    meters.accepted.increment();
+    Infosystem previous = unchanged ? harvestIndex.harvested(uri, contentHash) : null;
+    return previous != null ? previous : new Infosystem(serialized, contentHash);
+  }
+
+  /**
+   * Meters of a single producer, tagged with its url. Fetch covers the request up to the response headers, parse
+   * covers reading and parsing the body without converting the records. Records are converted concurrently, so
+   * skipped records are counted here and logged once per harvest of the producer.
+   */
+  private static class ProducerMeters {
+    final MeterRegistry registry;
+    final String url;
+    final Timer fetch;
+    final Timer parse;
+    final Timer validation;
+    final Counter accepted;
+    final Counter invalid;
+    final Counter notWhitelisted;
+    private final AtomicInteger invalidRecords = new AtomicInteger();
+    private volatile String firstInvalid;
+    private final AtomicInteger notWhitelistedRecords = new AtomicInteger();
+    private final Set<String> notWhitelistedOwners = ConcurrentHashMap.newKeySet();
+
+    ProducerMeters(MeterRegistry registry, String url) {
+      this.registry = registry;
+      this.url = url;
+      fetch = registry.timer("harvester.producer.fetch", "producer", url);
+      parse = registry.timer("harvester.producer.parse", "producer", url);
+      validation = registry.timer("harvester.producer.validation", "producer", url);
+      accepted = records("accepted");
+      invalid = records("invalid");
+      notWhitelisted = records("not_whitelisted");
+    }
+
+    private Counter records(String outcome) {
+      return registry.counter("harvester.producer.records", "producer", url, "outcome", outcome);
+    }
+
+    boolean validate(BooleanSupplier validation) {
+      long started = System.nanoTime();
+      boolean valid = validation.getAsBoolean();
+      this.validation.record(System.nanoTime() - started, NANOSECONDS);
+      return valid;
+    }
+
+    void invalid(JsonNode json) {
+      invalid.increment();
+      if (invalidRecords.getAndIncrement() == 0) firstInvalid = json.toString();
+    }
+
+    void notWhitelisted(String owner) {
+      notWhitelisted.increment();
+      notWhitelistedRecords.incrementAndGet();
+      notWhitelistedOwners.add(owner);
+    }
+
+    void logSkipped(Logger logger) {
+      if (invalidRecords.get() > 0) {
+        logger.warn("Skipped {} infosystems with invalid json from {}, first: {}", invalidRecords.get(), url, firstInvalid);
+      }
+      if (notWhitelistedRecords.get() > 0) {
+        logger.warn("Skipped {} infosystems from {}, owner codes not whitelisted: {}", notWhitelistedRecords.get(), url,
+          new TreeSet<>(notWhitelistedOwners));
+      }
+    }
+
+    void response(String status) {
+      registry.counter("harvester.producer.responses", "producer", url, "status", status).increment();
+    }
+  }
+
+  private byte[] serialize(JsonNode infosystemJson) {
+    try {
+      return objectMapper.writeValueAsBytes(infosystemJson);
     }
     catch (IOException e) {
-      logger.error("Could not read producers db " + path, e);
-      throw new RuntimeException(e);
+      logger.error("Skipping infosystem, could not serialize: " + infosystemJson, e);
+      return null;
     }
   }
 
-  private List<Infosystem> addApprovals(List<Infosystem> infosystems, Map<String, JSONObject> approvals) {
-    merge(infosystems, approvals);
-    return infosystems;
+  private String schemaVersion() {
+    try {
+      return schemaValidator.version();
+    }
+    catch (Exception e) {
+      logger.error("Error reading infosystem schema", e);
+      return null;
+    }
+  }
+
+  List<Infosystem> addApprovals(Collection<Infosystem> infosystems, Map<String, JSONObject> approvalsById) {
+    List<Infosystem> result = new ArrayList<>(infosystems.size());
+    for (Infosystem infosystem : infosystems) {
+      JSONObject approval = approvalsById.get(infosystem.getId());
+      Infosystem published = incremental ? harvestIndex.published(infosystem, approval) : null;
+      if (published == null) published = approval != null ? infosystem.withApproval(approval) : infosystem;
+      result.add(published);
+    }
+    return result;
+  }
+
+  /**
+   * Joins approvals with the infosystems one at a time while they are iterated.
+   */
+  private static Iterable<Infosystem> withApprovals(Collection<Infosystem> infosystems, Map<String, JSONObject> approvalsById) {
+    return () -> infosystems.stream().map(infosystem -> {
+      JSONObject approval = approvalsById.get(infosystem.getId());
+      return approval != null ? infosystem.withApproval(approval) : infosystem;
+    }).iterator();
   }
 
-  private Map<String, JSONObject> getApprovals() throws UnreachableResourceException {
+  Map<String, JSONObject> getApprovals() throws UnreachableResourceException {
     JSONArray approvals = getApprovalData();
 
     Map<String, JSONObject> approvalsById = new HashMap<>();
     for (int i = 0; i < approvals.length(); i++) {
       JSONObject jsonObject = approvals.getJSONObject(i);
-      String uri = jsonObject.getString("uri");
-      jsonObject.remove("uri");
-      approvalsById.put(uri, jsonObject);
+      JSONObject approval = new JSONObject(jsonObject, JSONObject.getNames(jsonObject));
+      approval.remove("uri");
+      approvalsById.put(jsonObject.getString("uri"), approval);
     }
     return approvalsById;
   }
 
-  private void merge(List<Infosystem> infosystems, Map<String, JSONObject> approvalsById) {
-    for (Infosystem infosystem : infosystems) {
-      String id = infosystem.getId();
-      if (approvalsById.containsKey(id)) {
-        infosystem.setApproval(approvalsById.get(id));
-      }
+  JSONArray getData(String url) throws UnreachableResourceException {
+    try (ProducerResponse response = openData(url)) {
+      if (response.isNotModified()) return notModifiedContent(url);
+
+      JSONArray data = new JSONArray(new JSONTokener(new InputStreamReader(response.getBody(), UTF_8)));
+      responseCache.put(url, response, data, null);
+      return data;
+    }
+    catch (IOException | JSONException e) {
+      throw new UnreachableResourceException(e);
     }
   }
 
-  JSONArray getData(String url) throws UnreachableResourceException {
+  private <T> T notModifiedContent(String url) throws UnreachableResourceException {
+    T cached = responseCache.get(url);
+    if (cached == null) throw new UnreachableResourceException(new IllegalStateException("Not modified response without cached content"));
+    return cached;
+  }
+
+  ProducerResponse openData(String url) throws UnreachableResourceException {
     try {
-      return new JSONArray(Get(url).execute().returnContent().asString());
+      HttpGet request = new HttpGet(url);
+      responseCache.addConditionalHeaders(url, request);
+
+      ProducerHttpClient httpClient = httpClient();
+      CloseableHttpResponse response = httpClient.execute(request);
+      StatusLine status = response.getStatusLine();
+      if (status.getStatusCode() == SC_NOT_MODIFIED) {
+        response.close();
+        return ProducerResponse.notModified();
+      }
+      if (status.getStatusCode() >= 300) {
+        response.close();
+        throw new HttpResponseException(status.getStatusCode(), status.getReasonPhrase());
+      }
+      try {
+        return new ProducerResponse(httpClient.body(response), headerValue(response, ETAG), headerValue(response, LAST_MODIFIED));
+      }
+      catch (IOException e) {
+        response.close();
+        throw e;
+      }
     }
-    catch (Exception e) {
+    catch (IOException | IllegalArgumentException e) {
       throw new UnreachableResourceException(e);
     }
   }
 
+  private synchronized ProducerHttpClient httpClient() {
+    if (httpClient == null) {
+      httpClient = new ProducerHttpClient(httpMaxConnections, httpMaxConnectionsPerRoute,
+        SECONDS.toMillis(httpConnectTimeoutSeconds), SECONDS.toMillis(producerTimeoutSeconds),
+        SECONDS.toMillis(httpKeepAliveSeconds), httpMaxBodyMegabytes * 1024L * 1024L);
+      ProducerHttpClient client = httpClient;
+      meterRegistry.gauge("harvester.http.connections", Tags.of("state", "leased"), client, ProducerHttpClient::leasedConnections);
+      meterRegistry.gauge("harvester.http.connections", Tags.of("state", "available"), client, ProducerHttpClient::availableConnections);
+    }
+    return httpClient;
+  }
+
+  @PreDestroy
+  public synchronized void close() throws IOException {
+    producerRegistry.close();
+    if (httpClient != null) httpClient.close();
+    if (recordPool != null) recordPool.shutdown();
+  }
+
+  private static String headerValue(HttpResponse response, String name) {
+    Header header = response.getFirstHeader(name);
+    return header == null ? null : header.getValue();
+  }
+
   JSONArray getApprovalData() throws UnreachableResourceException {
     return getData(approvalsUrl);
   }
@@ -185,11 +681,17 @@ public class HarvestService {
 
   boolean validateInfosystem(String infosystemJson) {
     try {
-      String schemaJson = new String(Files.readAllBytes(Paths.get("infosystem-schema.json")));
-      JsonNode schemaNode = new ObjectMapper().readValue(schemaJson, JsonNode.class);
-      JsonNode infosystemNode = new ObjectMapper().readValue(infosystemJson, JsonNode.class);
-      ProcessingReport report = JsonSchemaFactory.byDefault().getJsonSchema(schemaNode).validate(infosystemNode);
-      return report.isSuccess();
+      return validateInfosystem(objectMapper.readTree(infosystemJson));
+    }
+    catch (IOException e) {
+      logger.error("Error validating infosystem", e);
+      return false;
+    }
+  }
+
+  boolean validateInfosystem(JsonNode infosystemJson) {
+    try {
+      return schemaValidator.isValid(infosystemJson);
     }
     catch (Exception e) {
       logger.error("Error validating infosystem", e);
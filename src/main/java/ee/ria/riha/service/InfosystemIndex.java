@@ -0,0 +1,458 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.models.Infosystem;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Function;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Comparator.comparing;
+
+/**
+ * Immutable secondary indexes over one published generation, kept in a compact binary layout that is written next to
+ * the json catalogue and memory mapped together with it when the service starts, so nothing is parsed before serving
+ * and querying. Infosystems are sorted by uri and point into the catalogue file. Every indexed value maps to the
+ * ascending positions of the infosystems having it, so a query walks only the positions of its most selective filter,
+ * starting right after the keyset cursor.
+ * <p>
+ * Layout, big-endian: a header, an entry per infosystem with the references of its uri, owner, approval status and
+ * system status and the offset and length of its json in the catalogue, the postings of owners, approval statuses and
+ * system statuses, and length prefixed UTF-8 strings that are stored once and compared by reference. The catalogue is
+ * not copied into the index, it is mapped in segments, so it is not limited to 2 GiB.
+ */
+class InfosystemIndex {
+
+  private static final int MAGIC = 0x52494841;
+  private static final int VERSION = 2;
+  private static final int HEADER_BYTES = 9 * 4;
+  private static final int ENTRY_BYTES = 7 * 4;
+  private static final int SEGMENT_BYTES = 1 << 30;
+  private static final int NONE = -1;
+
+  /**
+   * Byte offsets of the fields of an entry.
+   */
+  private static final int URI = 0, JSON_OFFSET = 4, JSON_LENGTH = 12, OWNER = 16, APPROVAL_STATUS = 20, SYSTEM_STATUS = 24;
+
+  static final InfosystemIndex EMPTY = build(Collections.emptyList());
+
+  private final ByteBuffer buffer;
+  private final ByteBuffer[] catalogue;
+  private final int count;
+  private final int strings;
+  private final long catalogueLength;
+  private final int digest;
+  private final int source;
+
+  private final Map<String, Postings> byOwner = new HashMap<>();
+  private final Map<String, Postings> byApprovalStatus = new HashMap<>();
+  private final Map<String, Postings> bySystemStatus = new HashMap<>();
+  private final Postings none = new Postings(NONE, 0, 0);
+
+  private InfosystemIndex(ByteBuffer buffer, ByteBuffer[] catalogue) {
+    if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      throw new IllegalArgumentException("Not an infosystem index of version " + VERSION);
+    }
+    this.buffer = buffer;
+    this.catalogue = catalogue;
+    count = buffer.getInt(8);
+    int postings = buffer.getInt(12);
+    strings = buffer.getInt(16);
+    catalogueLength = buffer.getLong(20);
+    digest = buffer.getInt(28);
+    source = buffer.getInt(32);
+    if (strings > buffer.capacity()) throw new IllegalArgumentException("Truncated infosystem index");
+
+    postings = readPostings(postings, byOwner);
+    postings = readPostings(postings, byApprovalStatus);
+    readPostings(postings, bySystemStatus);
+  }
+
+  static InfosystemIndex build(List<Infosystem> infosystems) {
+    Builder builder = new Builder();
+    infosystems.forEach(builder::add);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      builder.write(null, null, out);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    byte[] catalogue = Infosystem.toJsonArray(infosystems);
+    ByteBuffer[] segments = new ByteBuffer[segments(catalogue.length)];
+    for (int i = 0; i < segments.length; i++) {
+      int offset = i * SEGMENT_BYTES;
+      segments[i] = ByteBuffer.wrap(catalogue, offset, Math.min(SEGMENT_BYTES, catalogue.length - offset)).slice();
+    }
+    return new InfosystemIndex(ByteBuffer.wrap(out.toByteArray()), segments);
+  }
+
+  static InfosystemIndex parse(byte[] catalogue) {
+    return build(Infosystem.listOf(catalogue));
+  }
+
+  /**
+   * Maps a written index and the catalogue it was written for into memory without reading them.
+   *
+   * @throws IllegalArgumentException if the file is not an index of the current version or the catalogue is not as
+   * long as the one the index was written for
+   */
+  static InfosystemIndex map(Path path, Path catalogue) throws IOException {
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(path, READ)) {
+      if (channel.size() > Integer.MAX_VALUE) throw new IllegalArgumentException("Infosystem index exceeds 2 GiB");
+      buffer = channel.map(READ_ONLY, 0, channel.size());
+    }
+    try (FileChannel channel = FileChannel.open(catalogue, READ)) {
+      long length = channel.size();
+      ByteBuffer[] segments = new ByteBuffer[segments(length)];
+      for (int i = 0; i < segments.length; i++) {
+        long offset = (long) i * SEGMENT_BYTES;
+        segments[i] = channel.map(READ_ONLY, offset, Math.min(SEGMENT_BYTES, length - offset));
+      }
+      InfosystemIndex index = new InfosystemIndex(buffer, segments);
+      if (index.catalogueLength != length) throw new IllegalArgumentException("Catalogue does not match infosystem index");
+      return index;
+    }
+  }
+
+  private static int segments(long length) {
+    return (int) ((length + SEGMENT_BYTES - 1) / SEGMENT_BYTES);
+  }
+
+  /**
+   * Collects the entries of infosystems while their catalogue is written, one infosystem at a time, so the index of a
+   * catalogue that is streamed to a file can be written without holding the catalogue. Only the indexed fields are
+   * kept, values other than uris are shared between entries.
+   */
+  static class Builder {
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<String, String> values = new HashMap<>();
+    private long offset = 1;
+
+    /**
+     * Adds the infosystem written next to the catalogue.
+     */
+    void add(Infosystem infosystem) {
+      int length = infosystem.getJsonBytes().length;
+      if (infosystem.getId() != null) {
+        entries.add(new Entry(infosystem.getId(), offset, length, value(infosystem.getOwner()),
+          value(infosystem.getString("meta", "approval_status", "status")),
+          value(infosystem.getString("meta", "system_status", "status"))));
+      }
+      offset += length + 1;
+    }
+
+    private String value(String value) {
+      return value == null ? null : values.computeIfAbsent(value, key -> key);
+    }
+
+    /**
+     * Writes the index of the catalogue the infosystems were written to as a json array.
+     *
+     * @param digest hex MD5 digest of the catalogue, or null
+     * @param source version of the catalogue file, to tell whether the index is still current
+     */
+    void write(String digest, String source, OutputStream out) throws IOException {
+      List<Entry> entries = unique(this.entries);
+      StringTable strings = new StringTable();
+
+      ByteArrayOutputStream entryBytes = new ByteArrayOutputStream(entries.size() * ENTRY_BYTES);
+      DataOutputStream entryData = new DataOutputStream(entryBytes);
+      for (Entry entry : entries) {
+        entryData.writeInt(strings.ref(entry.uri));
+        entryData.writeLong(entry.jsonOffset);
+        entryData.writeInt(entry.jsonLength);
+        entryData.writeInt(strings.ref(entry.owner));
+        entryData.writeInt(strings.ref(entry.approvalStatus));
+        entryData.writeInt(strings.ref(entry.systemStatus));
+      }
+
+      ByteArrayOutputStream postingBytes = new ByteArrayOutputStream();
+      DataOutputStream postingData = new DataOutputStream(postingBytes);
+      writePostings(entries, entry -> entry.owner, strings, postingData);
+      writePostings(entries, entry -> entry.approvalStatus, strings, postingData);
+      writePostings(entries, entry -> entry.systemStatus, strings, postingData);
+
+      int digestRef = strings.ref(digest);
+      int sourceRef = strings.ref(source);
+
+      long postings = HEADER_BYTES + entryBytes.size();
+      long stringsOffset = postings + postingBytes.size();
+      if (stringsOffset + strings.size() > Integer.MAX_VALUE) throw new IllegalArgumentException("Infosystem index exceeds 2 GiB");
+
+      DataOutputStream data = new DataOutputStream(out);
+      data.writeInt(MAGIC);
+      data.writeInt(VERSION);
+      data.writeInt(entries.size());
+      data.writeInt((int) postings);
+      data.writeInt((int) stringsOffset);
+      data.writeLong(Math.max(offset, 2));
+      data.writeInt(digestRef);
+      data.writeInt(sourceRef);
+      entryBytes.writeTo(data);
+      postingBytes.writeTo(data);
+      strings.writeTo(data);
+      data.flush();
+    }
+
+    private static List<Entry> unique(List<Entry> entries) {
+      entries.sort(comparing(entry -> entry.uri));
+      List<Entry> unique = new ArrayList<>(entries.size());
+      for (Entry entry : entries) {
+        if (unique.isEmpty() || !unique.get(unique.size() - 1).uri.equals(entry.uri)) unique.add(entry);
+      }
+      return unique;
+    }
+  }
+
+  private static void writePostings(List<Entry> entries, Function<Entry, String> field, StringTable strings,
+                                    DataOutputStream out) throws IOException {
+    Map<String, List<Integer>> positions = new LinkedHashMap<>();
+    for (int i = 0; i < entries.size(); i++) {
+      String value = field.apply(entries.get(i));
+      if (value != null) positions.computeIfAbsent(value, key -> new ArrayList<>()).add(i);
+    }
+    out.writeInt(positions.size());
+    for (Map.Entry<String, List<Integer>> value : positions.entrySet()) {
+      out.writeInt(strings.ref(value.getKey()));
+      out.writeInt(value.getValue().size());
+      for (int position : value.getValue()) out.writeInt(position);
+    }
+  }
+
+  private int readPostings(int offset, Map<String, Postings> postings) {
+    int values = buffer.getInt(offset);
+    offset += 4;
+    for (int i = 0; i < values; i++) {
+      int value = buffer.getInt(offset);
+      int length = buffer.getInt(offset + 4);
+      postings.put(string(value), new Postings(value, offset + 8, length));
+      offset += 8 + 4 * length;
+    }
+    return offset;
+  }
+
+  int size() {
+    return count;
+  }
+
+  /**
+   * Version of the catalogue file the index was written for.
+   */
+  String getSource() {
+    return source == NONE ? null : string(source);
+  }
+
+  /**
+   * Hex MD5 digest of the catalogue, or null if the index was written without it.
+   */
+  String getDigest() {
+    return digest == NONE ? null : string(digest);
+  }
+
+  /**
+   * Json of the infosystem with the uri, or null if it is not in the catalogue.
+   */
+  byte[] json(String uri) {
+    int position = find(uri);
+    return position == NONE ? null : json(position);
+  }
+
+  /**
+   * Runs the query and returns a json object with the matching infosystems and the cursor of the next page, which is
+   * null on the last page.
+   */
+  String query(InfosystemQuery query) {
+    int start = query.getAfter() == null ? 0 : firstAfter(query.getAfter());
+    Postings owner = postings(byOwner, query.getOwner());
+    Postings approvalStatus = postings(byApprovalStatus, query.getApprovalStatus());
+    Postings systemStatus = postings(bySystemStatus, query.getSystemStatus());
+    if (owner == none || approvalStatus == none || systemStatus == none) return "{\"infosystems\":[],\"next\":null}";
+
+    Postings candidates = narrower(narrower(owner, approvalStatus), systemStatus);
+    int from = start, to = count;
+    if (query.getUri() != null) {
+      int position = find(query.getUri());
+      candidates = null;
+      from = position >= start ? position : 0;
+      to = position >= start ? position + 1 : 0;
+    }
+    else if (candidates != null) {
+      from = candidates.lowerBound(start);
+      to = candidates.length;
+    }
+
+    StringBuilder result = new StringBuilder("{\"infosystems\":[");
+    int found = 0;
+    String last = null;
+    boolean more = false;
+    for (int i = from; i < to; i++) {
+      int position = candidates == null ? i : candidates.position(i);
+      if (!matches(position, owner, OWNER) || !matches(position, approvalStatus, APPROVAL_STATUS)
+        || !matches(position, systemStatus, SYSTEM_STATUS)) continue;
+      if (found == query.getLimit()) {
+        more = true;
+        break;
+      }
+      if (found > 0) result.append(',');
+      result.append(new String(json(position), UTF_8));
+      last = uri(position);
+      found++;
+    }
+    return result.append("],\"next\":").append(more ? JSONObject.quote(last) : "null").append('}').toString();
+  }
+
+  private Postings postings(Map<String, Postings> postings, String value) {
+    if (value == null) return null;
+    return postings.getOrDefault(value, none);
+  }
+
+  private static Postings narrower(Postings a, Postings b) {
+    if (a == null) return b;
+    return b == null || a.length <= b.length ? a : b;
+  }
+
+  /**
+   * Infosystems without the field are stored with {@link #NONE}, so they never match a value.
+   */
+  private boolean matches(int position, Postings postings, int field) {
+    return postings == null || postings != none && postings.value == field(position, field);
+  }
+
+  private int find(String uri) {
+    int position = firstAfter(uri) - 1;
+    return position >= 0 && uri(position).equals(uri) ? position : NONE;
+  }
+
+  private int firstAfter(String uri) {
+    int low = 0, high = count;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (uri(middle).compareTo(uri) <= 0) low = middle + 1;
+      else high = middle;
+    }
+    return low;
+  }
+
+  private int field(int position, int field) {
+    return buffer.getInt(HEADER_BYTES + position * ENTRY_BYTES + field);
+  }
+
+  /**
+   * Copies the json of the infosystem out of the catalogue segments it lies in.
+   */
+  private byte[] json(int position) {
+    long offset = buffer.getLong(HEADER_BYTES + position * ENTRY_BYTES + JSON_OFFSET);
+    byte[] json = new byte[field(position, JSON_LENGTH)];
+    for (int copied = 0; copied < json.length; ) {
+      ByteBuffer segment = catalogue[(int) ((offset + copied) / SEGMENT_BYTES)].duplicate();
+      segment.position((int) ((offset + copied) % SEGMENT_BYTES));
+      int length = Math.min(json.length - copied, segment.remaining());
+      segment.get(json, copied, length);
+      copied += length;
+    }
+    return json;
+  }
+
+  private String uri(int position) {
+    return string(field(position, URI));
+  }
+
+  private String string(int ref) {
+    return new String(bytes(strings + ref + 4, buffer.getInt(strings + ref)), UTF_8);
+  }
+
+  private byte[] bytes(int offset, int length) {
+    byte[] bytes = new byte[length];
+    ByteBuffer region = buffer.duplicate();
+    region.position(offset);
+    region.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Ascending positions of the infosystems having a value, read from the index.
+   */
+  private class Postings {
+    final int value;
+    final int offset;
+    final int length;
+
+    Postings(int value, int offset, int length) {
+      this.value = value;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    int position(int i) {
+      return buffer.getInt(offset + 4 * i);
+    }
+
+    int lowerBound(int start) {
+      int low = 0, high = length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (position(middle) < start) low = middle + 1;
+        else high = middle;
+      }
+      return low;
+    }
+  }
+
+  private static class StringTable {
+    private final Map<String, Integer> refs = new HashMap<>();
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream data = new DataOutputStream(bytes);
+
+    int ref(String value) throws IOException {
+      if (value == null) return NONE;
+      Integer ref = refs.get(value);
+      if (ref != null) return ref;
+
+      ref = bytes.size();
+      byte[] encoded = value.getBytes(UTF_8);
+      data.writeInt(encoded.length);
+      data.write(encoded);
+      refs.put(value, ref);
+      return ref;
+    }
+
+    int size() {
+      return bytes.size();
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      bytes.writeTo(out);
+    }
+  }
+
+  private static class Entry {
+    final String uri;
+    final long jsonOffset;
+    final int jsonLength;
+    final String owner;
+    final String approvalStatus;
+    final String systemStatus;
+
+    private Entry(String uri, long jsonOffset, int jsonLength, String owner, String approvalStatus, String systemStatus) {
+      this.uri = uri;
+      this.jsonOffset = jsonOffset;
+      this.jsonLength = jsonLength;
+      this.owner = owner;
+      this.approvalStatus = approvalStatus;
+      this.systemStatus = systemStatus;
+    }
+  }
+}
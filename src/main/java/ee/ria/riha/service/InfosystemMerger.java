@@ -0,0 +1,55 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.models.Infosystem;
+
+import java.util.*;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Keeps a single infosystem per uri out of the records of all producers, in one pass over the records.
+ * <p>
+ * The record with the most recent {@code meta.system_status.timestamp} wins. A missing or unparseable timestamp is
+ * older than any valid one. When timestamps are equal, the record that comes first in harvest order wins: lower
+ * producer index first, then lower position within the producer's response. The result is ordered by the harvest
+ * order of the winners, so it does not depend on the order in which producers are added.
+ */
+class InfosystemMerger {
+
+  private final Map<String, Candidate> candidates = new HashMap<>();
+
+  void add(int producerIndex, List<Infosystem> infosystems) {
+    for (int i = 0; i < infosystems.size(); i++) {
+      add(new Candidate(infosystems.get(i), (long) producerIndex << 32 | i));
+    }
+  }
+
+  private void add(Candidate candidate) {
+    Candidate existing = candidates.putIfAbsent(candidate.infosystem.getId(), candidate);
+    if (existing != null && candidate.winsOver(existing)) {
+      candidates.put(candidate.infosystem.getId(), candidate);
+    }
+  }
+
+  List<Infosystem> result() {
+    return candidates.values().stream()
+      .sorted(Comparator.comparingLong(candidate -> candidate.position))
+      .map(candidate -> candidate.infosystem)
+      .collect(toList());
+  }
+
+  private static class Candidate {
+    final Infosystem infosystem;
+    final long position;
+
+    Candidate(Infosystem infosystem, long position) {
+      this.infosystem = infosystem;
+      this.position = position;
+    }
+
+    boolean winsOver(Candidate other) {
+      int comparison = Infosystem.BY_UPDATED.compare(infosystem, other.infosystem);
+      return comparison > 0 || comparison == 0 && position < other.position;
+    }
+  }
+}
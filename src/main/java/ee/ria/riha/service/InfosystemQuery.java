@@ -0,0 +1,69 @@
+package ee.ria.riha.service;
+
+/**
+ * Filter and page of a query over published infosystems. Filters that are not set match everything, set filters must
+ * all match. Results are ordered by uri and continue after the uri given as {@code after}.
+ */
+public class InfosystemQuery {
+
+  private String uri;
+  private String owner;
+  private String approvalStatus;
+  private String systemStatus;
+  private String after;
+  private int limit = 100;
+
+  public String getUri() {
+    return uri;
+  }
+
+  public InfosystemQuery setUri(String uri) {
+    this.uri = uri;
+    return this;
+  }
+
+  public String getOwner() {
+    return owner;
+  }
+
+  public InfosystemQuery setOwner(String owner) {
+    this.owner = owner;
+    return this;
+  }
+
+  public String getApprovalStatus() {
+    return approvalStatus;
+  }
+
+  public InfosystemQuery setApprovalStatus(String approvalStatus) {
+    this.approvalStatus = approvalStatus;
+    return this;
+  }
+
+  public String getSystemStatus() {
+    return systemStatus;
+  }
+
+  public InfosystemQuery setSystemStatus(String systemStatus) {
+    this.systemStatus = systemStatus;
+    return this;
+  }
+
+  public String getAfter() {
+    return after;
+  }
+
+  public InfosystemQuery setAfter(String after) {
+    this.after = after;
+    return this;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public InfosystemQuery setLimit(int limit) {
+    this.limit = limit;
+    return this;
+  }
+}
@@ -1,40 +1,453 @@
 package ee.ria.riha.service;
 
 import ee.ria.riha.models.Infosystem;
-import org.json.JSONArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.util.stream.Collectors.toList;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
 
 @Service
 public class InfosystemStorageService {
 
+  private Logger logger = LoggerFactory.getLogger(InfosystemStorageService.class);
+
+  private static final int BUFFER_BYTES = 64 * 1024;
+
   Path filePath = Paths.get("infosystems.json");
 
+  /**
+   * Serves the catalogue from the generation file instead of an encoded copy kept on the heap. The file is still
+   * copied through a buffer in user space, since the servlet output stream is not a file channel the kernel could send
+   * the file to, and it is served without gzip.
+   */
+  @Value("${storage.zeroCopy:false}")
+  boolean zeroCopy;
+
+  @Value("${storage.changeLogGenerations:1000}")
+  int changeLogGenerations = 1000;
+
+  @Value("${storage.historyGenerations:0}")
+  int historyGenerations;
+
+  @Value("${storage.historyDays:0}")
+  int historyDays;
+
+  @Value("${storage.projectionCacheSize:16}")
+  int projectionCacheSize = 16;
+
+  private volatile PublishedSnapshot snapshot;
+
+  private volatile InfosystemIndex index;
+
+  private long generation;
+
+  private ChangeLog changeLog;
+
+  private SnapshotHistory history;
+
+  private ProjectionCache projections;
+
+  private volatile long publishedVersion;
+
+  /**
+   * Hex MD5 digest of the current generation file, updated together with renaming a new generation over it.
+   */
+  private String savedDigest;
+
+  private final Object published = new Object();
+
+  private volatile InfosystemIndex mapped;
+
+  private volatile boolean mappedChecked;
+
   public String load() {
+    return new String(snapshot().getJson(), UTF_8);
+  }
+
+  public PublishedSnapshot snapshot() {
+    PublishedSnapshot current = snapshot;
+    if (current != null) return current;
+
+    synchronized (this) {
+      if (snapshot == null) {
+        String digest = mapped() == null ? null : mapped().getDigest();
+        snapshot = digest != null ? PublishedSnapshot.of(read(), etag(digest)) : PublishedSnapshot.of(read());
+      }
+      return snapshot;
+    }
+  }
+
+  /**
+   * Published catalogue with only the given fields of every infosystem, see {@link FieldProjection}. A projection is
+   * computed once per published generation, also when it is requested concurrently, and kept encoded for the
+   * {@code projectionCacheSize} most recently requested field sets.
+   *
+   * @param fields comma separated paths of fields, the whole catalogue is returned if none are given
+   * @throws IllegalArgumentException if a path is not valid
+   */
+  public PublishedSnapshot projection(String fields) {
+    FieldProjection projection = FieldProjection.parse(fields);
+    if (projection == null) return snapshot();
+
+    return projections().get(projection.getKey(), publishedVersion, () -> project(projection));
+  }
+
+  private PublishedSnapshot project(FieldProjection projection) {
+    PublishedSnapshot current = snapshot;
+    try (InputStream catalogue = current != null ? new ByteArrayInputStream(current.getJson()) : Files.newInputStream(filePath)) {
+      return projection.apply(catalogue);
+    }
+    catch (NoSuchFileException e) {
+      return PublishedSnapshot.of("[]".getBytes(UTF_8));
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private synchronized ProjectionCache projections() {
+    if (projections == null) projections = new ProjectionCache(projectionCacheSize);
+    return projections;
+  }
+
+  public String query(InfosystemQuery query) {
+    return index().query(query);
+  }
+
+  private InfosystemIndex index() {
+    InfosystemIndex current = index;
+    if (current != null) return current;
+
+    synchronized (this) {
+      if (index == null) index = mapped() != null ? mapped() : InfosystemIndex.parse(read());
+      return index;
+    }
+  }
+
+  /**
+   * Binary index written with the current generation, mapped together with the generation file on first use. An index
+   * that is missing, unreadable or written for another generation is ignored.
+   */
+  private InfosystemIndex mapped() {
+    if (mappedChecked) return mapped;
+    synchronized (this) {
+      if (!mappedChecked) mapped = mapIndex();
+      mappedChecked = true;
+      return mapped;
+    }
+  }
+
+  private InfosystemIndex mapIndex() {
+    Path path = indexPath();
+    try {
+      if (!Files.exists(path) || !Files.exists(filePath)) return null;
+      InfosystemIndex index = InfosystemIndex.map(path, filePath);
+      if (index.getSource() != null && index.getSource().equals(version(filePath))) return index;
+      logger.info("Ignoring index {} written for another generation", path);
+    }
+    catch (IOException | IllegalArgumentException e) {
+      logger.warn("Could not map index " + path + ", reading " + filePath, e);
+    }
+    return null;
+  }
+
+  /**
+   * Infosystems added, updated and removed after the given generation, see {@link ChangeLog#since(Long)}.
+   */
+  public synchronized String changes(Long since) {
+    return changeLog().since(since);
+  }
+
+  private synchronized ChangeLog changeLog() {
+    if (changeLog == null) {
+      changeLog = new ChangeLog(filePath.resolveSibling(filePath.getFileName() + ".changes"), changeLogGenerations,
+        this::read, uri -> index().json(uri));
+    }
+    return changeLog;
+  }
+
+  /**
+   * Generation kept in the snapshot history, it must be closed after it has been read.
+   *
+   * @return the generation or null if it is not kept
+   */
+  public ArchivedGeneration archivedGeneration(long generation) throws IOException {
+    return history() == null ? null : history().get(generation);
+  }
+
+  /**
+   * @return generations kept in the snapshot history, oldest first
+   */
+  public List<Long> archivedGenerations() {
+    return history() == null ? Collections.emptyList() : history().generations();
+  }
+
+  /**
+   * History of the last {@code historyGenerations} generations that are not older than {@code historyDays}, or null if
+   * no history is kept.
+   */
+  private synchronized SnapshotHistory history() {
+    if (history == null && historyGenerations > 0) {
+      history = new SnapshotHistory(filePath.resolveSibling(filePath.getFileName() + ".history"), historyGenerations, historyDays);
+    }
+    return history;
+  }
+
+  private SnapshotHistory.Writer historyWriter() {
+    if (history() == null) return null;
     try {
-      if (!filePath.toFile().exists()) return "[]";
-      return new String(Files.readAllBytes(filePath), UTF_8);
+      return history().writer();
+    }
+    catch (IOException e) {
+      logger.error("Could not write generation to history", e);
+      return null;
+    }
+  }
+
+  public boolean isZeroCopy() {
+    return zeroCopy;
+  }
+
+  /**
+   * Opens the current generation file for serving it without keeping the catalogue on the heap. Its ETag is the digest
+   * of its content, the same as that of {@link #snapshot()}.
+   *
+   * @return opened generation or null if nothing has been harvested yet
+   */
+  public GenerationFile openGeneration() {
+    try {
+      InfosystemIndex index = mapped();
+      synchronized (published) {
+        FileChannel channel = FileChannel.open(filePath, READ);
+        try {
+          return new GenerationFile(channel, channel.size(), etag(savedDigest(index)));
+        }
+        catch (IOException | RuntimeException e) {
+          channel.close();
+          throw e;
+        }
+      }
+    }
+    catch (NoSuchFileException e) {
+      return null;
     }
     catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  public void save(List<Infosystem> infosystems) {
+  private byte[] read() {
     try {
-      String json = new JSONArray(infosystems.stream().map(Infosystem::getJson).collect(toList())).toString();
-      Files.write(filePath, json.getBytes(UTF_8));
+      if (!filePath.toFile().exists()) return "[]".getBytes(UTF_8);
+      return Files.readAllBytes(filePath);
     }
     catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
+
+  /**
+   * Publishes the infosystems as a new generation. Nothing is written if they are the same as the published ones.
+   */
+  public synchronized void save(List<Infosystem> infosystems) {
+    save(infosystems, !zeroCopy);
+  }
+
+  /**
+   * Publishes the infosystems like {@link #save(List)}, reading them one at a time while they are written, so the
+   * catalogue is not held on the heap. The snapshot is not encoded ahead, it is read from the generation file when it
+   * is first requested, which is never when serving with {@code storage.zeroCopy}. Infosystems that changed are read
+   * twice, so iterating them must return the same infosystems every time.
+   */
+  public synchronized void saveStreaming(Iterable<Infosystem> infosystems) {
+    save(infosystems, false);
+  }
+
+  /**
+   * Publishes the infosystems unless their catalogue has the digest of the published one. The digest is computed in a
+   * pass of its own, so an unchanged catalogue is only read: neither a generation file nor a history generation is
+   * written for it.
+   */
+  private void save(Iterable<Infosystem> infosystems, boolean encodeSnapshot) {
+    try {
+      if (Files.exists(filePath) && digest(infosystems).equals(savedDigest(mapped()))) return;
+      publish(infosystems, encodeSnapshot);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void publish(Iterable<Infosystem> infosystems, boolean encodeSnapshot) throws IOException {
+    try (SnapshotHistory.Writer archive = historyWriter()) {
+      long next = Math.max(Math.max(generation, changeLog().lastGeneration()) + 1, System.currentTimeMillis());
+      Path generationPath = filePath.resolveSibling(filePath.getFileName() + "." + next + ".tmp");
+      InfosystemIndex.Builder entries = new InfosystemIndex.Builder();
+      Map<String, byte[]> digests = new LinkedHashMap<>();
+      String digest;
+      try {
+        digest = write(generationPath, infosystems, infosystem -> {
+          byte[] document = ChangeLog.digest(infosystem);
+          entries.add(infosystem);
+          if (infosystem.getId() != null) digests.put(infosystem.getId(), document);
+          if (archive != null) archive.add(infosystem, document);
+        });
+      }
+      catch (IOException | RuntimeException e) {
+        Files.deleteIfExists(generationPath);
+        throw e;
+      }
+
+      generation = next;
+      synchronized (published) {
+        Files.move(generationPath, filePath, ATOMIC_MOVE, REPLACE_EXISTING);
+        savedDigest = digest;
+      }
+      snapshot = encodeSnapshot ? PublishedSnapshot.of(read(), etag(digest)) : null;
+      publishedVersion++;
+      index = writeIndex(entries, digest);
+      mapped = index;
+      mappedChecked = true;
+      changeLog().record(generation, digests);
+      if (archive != null) archive.commit(generation);
+    }
+  }
+
+  /**
+   * Writes the binary index of the generation and maps it with the generation file, so queries do not keep the
+   * catalogue on the heap and the next start neither parses nor hashes it. If the index cannot be written, it is built
+   * from the catalogue when it is first queried.
+   */
+  private InfosystemIndex writeIndex(InfosystemIndex.Builder entries, String digest) {
+    Path path = indexPath();
+    try {
+      Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+        entries.write(digest, version(filePath), out);
+      }
+      Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+      return InfosystemIndex.map(path, filePath);
+    }
+    catch (IOException | IllegalArgumentException e) {
+      logger.error("Could not write index " + path, e);
+      return null;
+    }
+  }
+
+  private Path indexPath() {
+    return filePath.resolveSibling(filePath.getFileName() + ".index");
+  }
+
+  /**
+   * Identifies a generation file without reading it, a renamed generation gets a new file key.
+   */
+  private static String version(Path path) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    return attributes.fileKey() + "/" + attributes.lastModifiedTime().toMillis() + "/" + attributes.size();
+  }
+
+  /**
+   * Writes the infosystems as a json array and syncs it to disk, handing every written infosystem to the consumer.
+   *
+   * @return hex MD5 digest of the written file
+   */
+  private static String write(Path path, Iterable<Infosystem> infosystems, Consumer<Infosystem> written) throws IOException {
+    MessageDigest md5 = md5();
+    try (FileChannel channel = FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      OutputStream out = new DigestOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_BYTES), md5);
+      out.write('[');
+      boolean first = true;
+      for (Infosystem infosystem : infosystems) {
+        if (!first) out.write(',');
+        out.write(infosystem.getJsonBytes());
+        written.accept(infosystem);
+        first = false;
+      }
+      out.write(']');
+      out.flush();
+      channel.force(true);
+    }
+    return hex(md5.digest());
+  }
+
+  /**
+   * @return hex MD5 digest of the json array {@link #write} writes for the infosystems
+   */
+  private static String digest(Iterable<Infosystem> infosystems) {
+    MessageDigest md5 = md5();
+    md5.update((byte) '[');
+    boolean first = true;
+    for (Infosystem infosystem : infosystems) {
+      if (!first) md5.update((byte) ',');
+      md5.update(infosystem.getJsonBytes());
+      first = false;
+    }
+    md5.update((byte) ']');
+    return hex(md5.digest());
+  }
+
+  /**
+   * Digest of the current generation file, taken from its index or read from the file once after start.
+   *
+   * @param index {@link #mapped()}, looked up before taking the lock that a save holds while publishing
+   */
+  private String savedDigest(InfosystemIndex index) throws IOException {
+    synchronized (published) {
+      if (savedDigest == null) {
+        savedDigest = index != null && index.getDigest() != null ? index.getDigest() : hex(digest(filePath));
+      }
+      return savedDigest;
+    }
+  }
+
+  private static String etag(String digest) {
+    return "\"" + digest + "\"";
+  }
+
+  private static String hex(byte[] digest) {
+    return String.format("%032x", new BigInteger(1, digest));
+  }
+
+  private static byte[] digest(Path path) throws IOException {
+    try (InputStream in = Files.newInputStream(path)) {
+      return DigestUtils.md5Digest(in);
+    }
+  }
+
+  private static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
 }
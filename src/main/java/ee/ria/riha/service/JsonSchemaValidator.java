@@ -0,0 +1,83 @@
+package ee.ria.riha.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.fge.jsonschema.core.exceptions.ProcessingException;
+import com.github.fge.jsonschema.main.JsonSchema;
+import com.github.fge.jsonschema.main.JsonSchemaFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Validates json trees against a schema file. The schema is compiled once and recompiled only after the file has
+ * changed on disk, so validating a record costs a single schema walk.
+ */
+class JsonSchemaValidator {
+
+  private Logger logger = LoggerFactory.getLogger(JsonSchemaValidator.class);
+
+  private final Path schemaPath;
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  long reloadCheckIntervalMillis = 1000;
+
+  private volatile CompiledSchema compiled;
+
+  JsonSchemaValidator(Path schemaPath) {
+    this.schemaPath = schemaPath;
+  }
+
+  boolean isValid(JsonNode json) throws IOException, ProcessingException {
+    return schema().validInstance(json);
+  }
+
+  /**
+   * Identifies the currently compiled schema file, changes whenever the schema is reloaded.
+   */
+  String version() throws IOException, ProcessingException {
+    schema();
+    CompiledSchema current = compiled;
+    return current.modified.toMillis() + "-" + current.size;
+  }
+
+  private JsonSchema schema() throws IOException, ProcessingException {
+    CompiledSchema current = compiled;
+    long now = System.currentTimeMillis();
+    if (current != null && now - current.checkedAt < reloadCheckIntervalMillis) return current.schema;
+
+    synchronized (this) {
+      current = compiled;
+      FileTime modified = Files.getLastModifiedTime(schemaPath);
+      long size = Files.size(schemaPath);
+      if (current != null && current.modified.equals(modified) && current.size == size) {
+        current.checkedAt = now;
+        return current.schema;
+      }
+
+      JsonNode schemaNode = objectMapper.readTree(Files.readAllBytes(schemaPath));
+      JsonSchema schema = JsonSchemaFactory.byDefault().getJsonSchema(schemaNode);
+      compiled = new CompiledSchema(schema, modified, size, now);
+      logger.info("Compiled json schema {}", schemaPath);
+      return schema;
+    }
+  }
+
+  private static class CompiledSchema {
+    final JsonSchema schema;
+    final FileTime modified;
+    final long size;
+    volatile long checkedAt;
+
+    CompiledSchema(JsonSchema schema, FileTime modified, long size, long checkedAt) {
+      this.schema = schema;
+      this.modified = modified;
+      this.size = size;
+      this.checkedAt = checkedAt;
+    }
+  }
+}
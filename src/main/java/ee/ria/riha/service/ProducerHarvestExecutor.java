@@ -0,0 +1,117 @@
+package ee.ria.riha.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.IntFunction;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Fetches producers in parallel on a bounded pool. Every fetch is cancelled once it has been running longer than the
+ * producer timeout, and the whole run stops waiting at the harvest deadline. Results are handed to the caller on the
+ * calling thread in the order they complete, tagged with the index of their url.
+ */
+class ProducerHarvestExecutor {
+
+  private Logger logger = LoggerFactory.getLogger(ProducerHarvestExecutor.class);
+
+  private final int threads;
+  private final long producerTimeoutMillis;
+  private final long deadlineMillis;
+
+  ProducerHarvestExecutor(int threads, long producerTimeoutMillis, long deadlineMillis) {
+    this.threads = threads;
+    this.producerTimeoutMillis = producerTimeoutMillis;
+    this.deadlineMillis = deadlineMillis;
+  }
+
+  <T> void run(List<String> urls, IntFunction<T> fetch, BiConsumer<Integer, T> onResult) {
+    if (urls.isEmpty()) return;
+
+    long deadline = System.currentTimeMillis() + deadlineMillis;
+    BlockingQueue<Fetch<T>> completed = new LinkedBlockingQueue<>();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, urls.size())), threadFactory("harvest-"));
+    ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(threadFactory("harvest-watchdog-"));
+    try {
+      for (int i = 0; i < urls.size(); i++) {
+        int index = i;
+        executor.execute(new Fetch<>(index, urls.get(index), () -> fetch.apply(index), watchdog, completed));
+      }
+
+      for (int pending = urls.size(); pending > 0; pending--) {
+        Fetch<T> done = completed.poll(deadline - System.currentTimeMillis(), MILLISECONDS);
+        if (done == null) {
+          logger.error("Harvest deadline of {} ms reached, skipping {} unfinished producers", deadlineMillis, pending);
+          return;
+        }
+        T result = done.result();
+        if (result != null) onResult.accept(done.index, result);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    finally {
+      executor.shutdownNow();
+      watchdog.shutdownNow();
+    }
+  }
+
+  private static ThreadFactory threadFactory(String prefix) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private class Fetch<T> extends FutureTask<T> {
+    final int index;
+    final String url;
+    private final ScheduledExecutorService watchdog;
+    private final BlockingQueue<Fetch<T>> completed;
+
+    Fetch(int index, String url, Callable<T> callable, ScheduledExecutorService watchdog, BlockingQueue<Fetch<T>> completed) {
+      super(callable);
+      this.index = index;
+      this.url = url;
+      this.watchdog = watchdog;
+      this.completed = completed;
+    }
+
+    @Override
+    public void run() {
+      ScheduledFuture<?> timeout = watchdog.schedule(() -> cancel(true), producerTimeoutMillis, MILLISECONDS);
+      try {
+        super.run();
+      }
+      finally {
+        timeout.cancel(false);
+      }
+    }
+
+    @Override
+    protected void done() {
+      completed.add(this);
+    }
+
+    T result() throws InterruptedException {
+      try {
+        return get();
+      }
+      catch (CancellationException e) {
+        logger.error("Skipping producer - no response within {} ms from: {}", producerTimeoutMillis, url);
+      }
+      catch (ExecutionException e) {
+        logger.error("Skipping producer - failed to harvest " + url, e.getCause());
+      }
+      return null;
+    }
+  }
+}
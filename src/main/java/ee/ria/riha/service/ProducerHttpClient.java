@@ -0,0 +1,127 @@
+package ee.ria.riha.service;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Http client shared by producer and approval requests. Connections are pooled and kept alive between harvests, so
+ * a producer is not connected to and TLS handshaken with again on every run. Responses are requested with gzip and
+ * deflate and decoded transparently, and a body that decodes to more than the maximum size fails with an
+ * {@link IOException}.
+ */
+class ProducerHttpClient implements Closeable {
+
+  private final long maxBodyBytes;
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final CloseableHttpClient httpClient;
+
+  /**
+   * @param keepAliveMillis how long an idle connection is kept when the server does not say
+   */
+  ProducerHttpClient(int maxConnections, int maxConnectionsPerRoute, long connectTimeoutMillis, long socketTimeoutMillis,
+                     long keepAliveMillis, long maxBodyBytes) {
+    this.maxBodyBytes = maxBodyBytes;
+
+    connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+    connectionManager.setValidateAfterInactivity(2000);
+
+    ConnectionKeepAliveStrategy keepAlive = (response, context) -> {
+      long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+      return duration > 0 ? Math.min(duration, keepAliveMillis) : keepAliveMillis;
+    };
+
+    httpClient = HttpClients.custom()
+      .setConnectionManager(connectionManager)
+      .setKeepAliveStrategy(keepAlive)
+      .evictExpiredConnections()
+      .evictIdleConnections(keepAliveMillis, MILLISECONDS)
+      .setDefaultRequestConfig(RequestConfig.custom()
+        .setConnectTimeout((int) connectTimeoutMillis)
+        .setConnectionRequestTimeout((int) socketTimeoutMillis)
+        .setSocketTimeout((int) socketTimeoutMillis)
+        .build())
+      .build();
+  }
+
+  CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+    return httpClient.execute(request);
+  }
+
+  /**
+   * Decoded body of the response, limited to the maximum body size.
+   */
+  InputStream body(HttpResponse response) throws IOException {
+    HttpEntity entity = response.getEntity();
+    if (entity == null) throw new IOException("Response has no body");
+    if (entity.getContentLength() > maxBodyBytes) {
+      throw new IOException("Response body of " + entity.getContentLength() + " bytes exceeds " + maxBodyBytes + " bytes");
+    }
+    return new LimitedInputStream(entity.getContent(), maxBodyBytes);
+  }
+
+  int leasedConnections() {
+    return connectionManager.getTotalStats().getLeased();
+  }
+
+  int availableConnections() {
+    return connectionManager.getTotalStats().getAvailable();
+  }
+
+  @Override
+  public void close() throws IOException {
+    httpClient.close();
+  }
+
+  private static class LimitedInputStream extends FilterInputStream {
+    private final long limit;
+    private long count;
+
+    LimitedInputStream(InputStream in, long limit) {
+      super(in);
+      this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) count(1);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) count(read);
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count(skipped);
+      return skipped;
+    }
+
+    private void count(long read) throws IOException {
+      count += read;
+      if (count > limit) throw new IOException("Response body exceeds " + limit + " bytes");
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package ee.ria.riha.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.*;
+import java.util.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * Producers of the producers db, parsed into immutable entries. The file is watched and parsed again only after it
+ * has changed, so config edits take effect on the next harvest without a restart. Entries keep the order of the file,
+ * which is also their order when equally recent infosystems are merged. Invalid entries are logged and left out, and
+ * a file that cannot be read leaves the previous producers in place.
+ */
+class ProducerRegistry implements Closeable {
+
+  private Logger logger = LoggerFactory.getLogger(ProducerRegistry.class);
+
+  private static final ProducerSchedule.Settings NO_SETTINGS = new ProducerSchedule.Settings(0, 0, 0, 0, 0, 0);
+
+  private final Path path;
+
+  private volatile List<Producer> producers;
+  private WatchService watchService;
+
+  ProducerRegistry(Path path) {
+    this.path = path.toAbsolutePath();
+  }
+
+  /**
+   * Current producers, the file is read and watched on the first call.
+   */
+  List<Producer> current() {
+    List<Producer> current = producers;
+    if (current != null) return current;
+
+    synchronized (this) {
+      if (producers == null) {
+        watch();
+        reload();
+      }
+      return producers;
+    }
+  }
+
+  /**
+   * Replaces the producers with the entries of the given properties, ordered by url.
+   */
+  synchronized void update(Properties entries) {
+    producers = parse(entries, new TreeSet<>(entries.stringPropertyNames()));
+  }
+
+  private synchronized void reload() {
+    if (!Files.exists(path)) {
+      if (producers == null || !producers.isEmpty()) logger.info("Producers db {} not found, no producers", path);
+      producers = Collections.emptyList();
+      return;
+    }
+
+    Set<String> order = new LinkedHashSet<>();
+    Properties entries = new Properties() {
+      @Override
+      public synchronized Object put(Object key, Object value) {
+        order.remove(key);
+        order.add((String) key);
+        return super.put(key, value);
+      }
+    };
+    try (InputStream inputStream = Files.newInputStream(path)) {
+      entries.load(inputStream);
+    }
+    catch (IOException | IllegalArgumentException e) {
+      logger.error("Could not read producers db " + path + ", keeping the previous producers", e);
+      if (producers == null) producers = Collections.emptyList();
+      return;
+    }
+    producers = parse(entries, order);
+    logger.info("Loaded {} producers from {}", producers.size(), path);
+  }
+
+  private List<Producer> parse(Properties entries, Collection<String> urls) {
+    List<Producer> parsed = new ArrayList<>(urls.size());
+    for (String url : urls) {
+      try {
+        parsed.add(Producer.parse(url, entries.getProperty(url)));
+      }
+      catch (IllegalArgumentException e) {
+        logger.error("Skipping invalid producer {}: {}", url, e.getMessage());
+      }
+    }
+    return unmodifiableList(parsed);
+  }
+
+  private void watch() {
+    Path directory = path.getParent();
+    try {
+      watchService = directory.getFileSystem().newWatchService();
+      directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+    }
+    catch (IOException e) {
+      logger.error("Could not watch producers db " + path + ", changes need a restart", e);
+      return;
+    }
+
+    Thread watcher = new Thread(this::watchChanges, "producers-db-watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  private void watchChanges() {
+    WatchService watchService = this.watchService;
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+          changed |= event.kind() == OVERFLOW || path.getFileName().equals(event.context());
+        }
+        if (changed) reload();
+        if (!key.reset()) {
+          logger.error("Producers db directory of {} is no longer watched, changes need a restart", path);
+          return;
+        }
+      }
+    }
+    catch (InterruptedException | ClosedWatchServiceException e) {
+      // closed
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (watchService != null) watchService.close();
+  }
+
+  /**
+   * Producer url with its owner whitelist and schedule options.
+   */
+  static class Producer {
+    final String url;
+    final Set<String> owners;
+    final Map<String, String> options;
+
+    private Producer(String url, Set<String> owners, Map<String, String> options) {
+      this.url = url;
+      this.owners = owners;
+      this.options = options;
+    }
+
+    /**
+     * @param entry comma separated owner codes, optionally followed by {@code ;name=value} schedule options
+     */
+    static Producer parse(String url, String entry) {
+      try {
+        URI uri = new URI(url);
+        if (!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme())) {
+          throw new IllegalArgumentException("Expected http or https url");
+        }
+      }
+      catch (URISyntaxException e) {
+        throw new IllegalArgumentException("Invalid url: " + e.getMessage());
+      }
+
+      String[] parts = entry.split(";");
+      Set<String> owners = new HashSet<>();
+      for (String owner : parts[0].split(",")) {
+        if (!owner.trim().isEmpty()) owners.add(owner.trim());
+      }
+      if (owners.isEmpty()) throw new IllegalArgumentException("No owners whitelisted");
+
+      Map<String, String> options = new LinkedHashMap<>();
+      for (int i = 1; i < parts.length; i++) {
+        String[] option = parts[i].split("=", 2);
+        if (option.length != 2) throw new IllegalArgumentException("Expected name=value option: " + parts[i]);
+        NO_SETTINGS.with(option[0], option[1]);
+        options.put(option[0].trim(), option[1].trim());
+      }
+      return new Producer(url, unmodifiableSet(owners), unmodifiableMap(options));
+    }
+
+    ProducerSchedule.Settings settings(ProducerSchedule.Settings defaults) {
+      ProducerSchedule.Settings settings = defaults;
+      for (Map.Entry<String, String> option : options.entrySet()) settings = settings.with(option.getKey(), option.getValue());
+      return settings;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package ee.ria.riha.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Body and cache validators of a producer response. A not modified response has no body.
+ */
+class ProducerResponse implements Closeable {
+
+  private static final ProducerResponse NOT_MODIFIED = new ProducerResponse(null, null, null);
+
+  private final InputStream body;
+  private final String etag;
+  private final String lastModified;
+
+  ProducerResponse(InputStream body, String etag, String lastModified) {
+    this.body = body;
+    this.etag = etag;
+    this.lastModified = lastModified;
+  }
+
+  static ProducerResponse notModified() {
+    return NOT_MODIFIED;
+  }
+
+  boolean isNotModified() {
+    return body == null;
+  }
+
+  InputStream getBody() {
+    return body;
+  }
+
+  String getEtag() {
+    return etag;
+  }
+
+  String getLastModified() {
+    return lastModified;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (body != null) body.close();
+  }
+}
@@ -0,0 +1,115 @@
+package ee.ria.riha.service;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Decides on which harvest a producer is fetched. A producer is fetched once its interval plus a random jitter has
+ * passed since the last attempt. After a failure it is retried with exponential backoff, and once it has failed
+ * {@code circuitBreakerFailures} times in a row its circuit opens: the producer is skipped for
+ * {@code circuitBreakerOpen} and then tried once more, a success closes the circuit.
+ * <p>
+ * Schedules are checked on harvest runs, so an interval is effectively rounded up to the harvest cron period.
+ */
+class ProducerSchedule {
+
+  /**
+   * Attempts due this soon are made on the current run, so an interval equal to the cron period is not missed by the
+   * few milliseconds a run starts late.
+   */
+  static final long DUE_TOLERANCE_MILLIS = 1000;
+
+  enum State { CLOSED, BACKOFF, OPEN }
+
+  private volatile Settings settings;
+  private long nextAttempt;
+  private int failures;
+
+  ProducerSchedule(Settings settings) {
+    this.settings = settings;
+  }
+
+  void setSettings(Settings settings) {
+    this.settings = settings;
+  }
+
+  synchronized boolean isDue(long now) {
+    return now >= nextAttempt - DUE_TOLERANCE_MILLIS;
+  }
+
+  synchronized State getState() {
+    if (failures == 0) return State.CLOSED;
+    return failures >= settings.circuitBreakerFailures ? State.OPEN : State.BACKOFF;
+  }
+
+  synchronized int getFailures() {
+    return failures;
+  }
+
+  /**
+   * @param attempted start of the harvest run the producer was fetched on
+   */
+  synchronized void succeeded(long attempted) {
+    failures = 0;
+    nextAttempt = attempted + settings.intervalMillis + jitter();
+  }
+
+  /**
+   * @param attempted start of the harvest run the producer was fetched on
+   */
+  synchronized void failed(long attempted) {
+    failures++;
+    Settings settings = this.settings;
+    long delay = failures >= settings.circuitBreakerFailures
+      ? settings.circuitBreakerOpenMillis
+      : Math.min(settings.maxBackoffMillis, Math.max(settings.intervalMillis, settings.backoffMillis) << Math.min(failures - 1, 30));
+    nextAttempt = attempted + delay + jitter();
+  }
+
+  private long jitter() {
+    long jitter = settings.jitterMillis;
+    return jitter <= 0 ? 0 : ThreadLocalRandom.current().nextLong(jitter + 1);
+  }
+
+  /**
+   * Immutable schedule settings, times in milliseconds.
+   */
+  static class Settings {
+    final long intervalMillis;
+    final long jitterMillis;
+    final long backoffMillis;
+    final long maxBackoffMillis;
+    final int circuitBreakerFailures;
+    final long circuitBreakerOpenMillis;
+
+    Settings(long intervalMillis, long jitterMillis, long backoffMillis, long maxBackoffMillis,
+             int circuitBreakerFailures, long circuitBreakerOpenMillis) {
+      this.intervalMillis = intervalMillis;
+      this.jitterMillis = jitterMillis;
+      this.backoffMillis = backoffMillis;
+      this.maxBackoffMillis = maxBackoffMillis;
+      this.circuitBreakerFailures = circuitBreakerFailures;
+      this.circuitBreakerOpenMillis = circuitBreakerOpenMillis;
+    }
+
+    /**
+     * Copy with one option of a producers db entry applied. Times are given in seconds.
+     *
+     * @throws IllegalArgumentException if the option is unknown or its value is not a number
+     */
+    Settings with(String option, String value) {
+      long number = Long.parseLong(value.trim());
+      long millis = SECONDS.toMillis(number);
+      switch (option.trim()) {
+        case "interval": return new Settings(millis, jitterMillis, backoffMillis, maxBackoffMillis, circuitBreakerFailures, circuitBreakerOpenMillis);
+        case "jitter": return new Settings(intervalMillis, millis, backoffMillis, maxBackoffMillis, circuitBreakerFailures, circuitBreakerOpenMillis);
+        case "backoff": return new Settings(intervalMillis, jitterMillis, millis, maxBackoffMillis, circuitBreakerFailures, circuitBreakerOpenMillis);
+        case "maxBackoff": return new Settings(intervalMillis, jitterMillis, backoffMillis, millis, circuitBreakerFailures, circuitBreakerOpenMillis);
+        case "circuitBreakerFailures": return new Settings(intervalMillis, jitterMillis, backoffMillis, maxBackoffMillis, (int) number, circuitBreakerOpenMillis);
+        case "circuitBreakerOpen": return new Settings(intervalMillis, jitterMillis, backoffMillis, maxBackoffMillis, circuitBreakerFailures, millis);
+        default: throw new IllegalArgumentException("Unknown producer option: " + option);
+      }
+    }
+  }
+}
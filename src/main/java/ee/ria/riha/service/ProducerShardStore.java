@@ -0,0 +1,177 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.models.Infosystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.DigestUtils;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Last good harvest of every producer, persisted as one shard file per producer. A shard is rewritten only when the
+ * producer's infosystems have changed, so a harvest writes as much as its producers changed rather than the whole
+ * catalogue. Shards are read back on demand after a restart, so a producer that is unreachable is still published
+ * with its last good infosystems. Shards that have been read or written are kept in memory unless caching is turned
+ * off, then every shard is read from its file when needed.
+ */
+class ProducerShardStore {
+
+  private Logger logger = LoggerFactory.getLogger(ProducerShardStore.class);
+
+  private static final String SUFFIX = ".json";
+
+  private final Path directory;
+
+  private final Map<String, Shard> shards = new HashMap<>();
+
+  private boolean caching = true;
+
+  ProducerShardStore(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * @return last good infosystems of the producer or null if it has never been harvested
+   */
+  synchronized List<Infosystem> get(String url) {
+    Shard shard = shard(url);
+    return shard == null ? null : shard.infosystems;
+  }
+
+  /**
+   * @return time of the last successful harvest of the producer or 0 if it has never been harvested
+   */
+  synchronized long lastSucceeded(String url) {
+    Shard shard = shards.get(url);
+    if (shard != null) return shard.succeeded;
+
+    Path path = path(url);
+    try {
+      return Files.getLastModifiedTime(path).toMillis();
+    }
+    catch (NoSuchFileException e) {
+      return 0;
+    }
+    catch (IOException e) {
+      logger.error("Could not read producer shard " + path + " of " + url, e);
+      return 0;
+    }
+  }
+
+  /**
+   * Stops keeping shards in memory and drops the ones kept so far.
+   */
+  synchronized void setCaching(boolean caching) {
+    this.caching = caching;
+    if (!caching) shards.clear();
+  }
+
+  /**
+   * Remembers a successful harvest of the producer. The shard file is written only if the infosystems differ from
+   * the last good ones, its modification time records the time of the harvest.
+   *
+   * @return true if the shard was written
+   */
+  synchronized boolean put(String url, List<Infosystem> infosystems, long succeeded) {
+    Path path = path(url);
+    boolean changed = true;
+    try {
+      if (caching) {
+        Shard previous = shard(url);
+        changed = previous == null || !same(previous.infosystems, infosystems);
+        if (changed) write(path, Infosystem.toJsonArray(infosystems));
+      }
+      else {
+        byte[] json = Infosystem.toJsonArray(infosystems);
+        changed = !Files.exists(path) || !Arrays.equals(json, Files.readAllBytes(path));
+        if (changed) write(path, json);
+      }
+      Files.setLastModifiedTime(path, FileTime.fromMillis(succeeded));
+    }
+    catch (IOException e) {
+      logger.error("Could not write producer shard " + path + " of " + url, e);
+    }
+    if (caching) shards.put(url, new Shard(infosystems, succeeded));
+    return changed;
+  }
+
+  /**
+   * Removes the shards of producers that are no longer harvested.
+   */
+  synchronized void retain(Collection<String> urls) {
+    shards.keySet().retainAll(urls);
+
+    Set<Path> retained = new HashSet<>();
+    for (String url : urls) retained.add(path(url).getFileName());
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+      for (Path file : files) {
+        if (retained.contains(file.getFileName())) continue;
+        Files.deleteIfExists(file);
+        logger.info("Removed shard {} of a producer that is no longer harvested", file);
+      }
+    }
+    catch (NoSuchFileException e) {
+      // nothing harvested yet
+    }
+    catch (IOException e) {
+      logger.error("Could not remove shards of producers that are no longer harvested from " + directory, e);
+    }
+  }
+
+  private Shard shard(String url) {
+    Shard shard = shards.get(url);
+    if (shard != null) return shard;
+
+    Path path = path(url);
+    if (!Files.exists(path)) return null;
+    try {
+      shard = new Shard(Infosystem.listOf(Files.readAllBytes(path)), Files.getLastModifiedTime(path).toMillis());
+    }
+    catch (IOException | IllegalArgumentException e) {
+      logger.error("Could not read producer shard " + path + " of " + url, e);
+      return null;
+    }
+    if (caching) shards.put(url, shard);
+    return shard;
+  }
+
+  private Path path(String url) {
+    return directory.resolve(DigestUtils.md5DigestAsHex(url.getBytes(UTF_8)) + SUFFIX);
+  }
+
+  private void write(Path path, byte[] json) throws IOException {
+    Files.createDirectories(directory);
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    Files.write(tmp, json);
+    Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+  }
+
+  private static boolean same(List<Infosystem> a, List<Infosystem> b) {
+    if (a == b) return true;
+    if (a.size() != b.size()) return false;
+    for (int i = 0; i < a.size(); i++) {
+      if (!Arrays.equals(a.get(i).getJsonBytes(), b.get(i).getJsonBytes())) return false;
+    }
+    return true;
+  }
+
+  private static class Shard {
+    final List<Infosystem> infosystems;
+    final long succeeded;
+
+    Shard(List<Infosystem> infosystems, long succeeded) {
+      this.infosystems = infosystems;
+      this.succeeded = succeeded;
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package ee.ria.riha.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Encoded projections of the published catalogue by {@link FieldProjection#getKey()}. When more than {@code size}
+ * projections are kept, the least recently used one is evicted. Every projection is kept with the version of the
+ * catalogue it was computed from and is not returned for another version.
+ * <p>
+ * A missing projection is computed once: concurrent requests for it wait for the first one instead of projecting the
+ * catalogue themselves.
+ */
+class ProjectionCache {
+
+  private final Map<String, Entry> entries;
+
+  ProjectionCache(int size) {
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > size;
+      }
+    };
+  }
+
+  /**
+   * @param compute projects the catalogue of the version, called if the projection is neither cached nor computed by
+   * another request
+   */
+  PublishedSnapshot get(String key, long version, Supplier<PublishedSnapshot> compute) {
+    CompletableFuture<PublishedSnapshot> projection;
+    boolean computing = false;
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.version > version) return compute.get();
+      if (entry == null || entry.version < version) {
+        entry = new Entry(version);
+        entries.put(key, entry);
+        computing = true;
+      }
+      projection = entry.projection;
+    }
+
+    if (computing) {
+      try {
+        projection.complete(compute.get());
+      }
+      catch (RuntimeException e) {
+        remove(key, projection);
+        projection.completeExceptionally(e);
+        throw e;
+      }
+    }
+    try {
+      return projection.join();
+    }
+    catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+    }
+  }
+
+  private synchronized void remove(String key, CompletableFuture<PublishedSnapshot> projection) {
+    Entry entry = entries.get(key);
+    if (entry != null && entry.projection == projection) entries.remove(key);
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  private static class Entry {
+    final long version;
+    final CompletableFuture<PublishedSnapshot> projection = new CompletableFuture<>();
+
+    Entry(long version) {
+      this.version = version;
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package ee.ria.riha.service;
+
+import org.springframework.util.DigestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Immutable published catalogue, encoded once as UTF-8 json and as gzip, with a strong ETag of its content for each
+ * encoding.
+ */
+public class PublishedSnapshot {
+
+  private final byte[] json;
+  private final byte[] gzipped;
+  private final String etag;
+
+  private PublishedSnapshot(byte[] json, byte[] gzipped, String etag) {
+    this.json = json;
+    this.gzipped = gzipped;
+    this.etag = etag;
+  }
+
+  static PublishedSnapshot of(byte[] json) {
+    return of(json, "\"" + DigestUtils.md5DigestAsHex(json) + "\"");
+  }
+
+  /**
+   * Snapshot of json whose ETag is known already, see {@link InfosystemIndex#getDigest()}.
+   */
+  static PublishedSnapshot of(byte[] json, String etag) {
+    return new PublishedSnapshot(json, gzip(json), etag);
+  }
+
+  private static byte[] gzip(byte[] data) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(data);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  public byte[] getJson() {
+    return json;
+  }
+
+  public byte[] getGzipped() {
+    return gzipped;
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  /**
+   * Strong ETag of the gzip encoding, a representation of its own under {@code Vary: Accept-Encoding}.
+   */
+  public String getGzipEtag() {
+    return etag.substring(0, etag.length() - 1) + "-gzip\"";
+  }
+}
@@ -0,0 +1,66 @@
+package ee.ria.riha.service;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+
+/**
+ * Applies a function to a batch of records on a fork join pool. The batch is split in halves until a part has at
+ * most {@code threshold} records, so idle workers steal the other halves. Results keep the order of the records.
+ */
+class RecordProcessor {
+
+  private final ForkJoinPool pool;
+  private final int threshold;
+
+  RecordProcessor(ForkJoinPool pool, int threshold) {
+    this.pool = pool;
+    this.threshold = Math.max(1, threshold);
+  }
+
+  /**
+   * @return results in the order of the records, the function must be safe to call concurrently
+   */
+  @SuppressWarnings("unchecked")
+  <T, R> List<R> process(List<T> records, Function<T, R> function) {
+    Object[] results = new Object[records.size()];
+    if (records.size() <= threshold) {
+      for (int i = 0; i < results.length; i++) results[i] = function.apply(records.get(i));
+    }
+    else {
+      pool.invoke(new Part<>(records, function, results, 0, records.size(), threshold));
+    }
+    return (List<R>) Arrays.asList(results);
+  }
+
+  private static class Part<T, R> extends RecursiveAction {
+    private final List<T> records;
+    private final Function<T, R> function;
+    private final Object[] results;
+    private final int from;
+    private final int to;
+    private final int threshold;
+
+    Part(List<T> records, Function<T, R> function, Object[] results, int from, int to, int threshold) {
+      this.records = records;
+      this.function = function;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+      this.threshold = threshold;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= threshold) {
+        for (int i = from; i < to; i++) results[i] = function.apply(records.get(i));
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new Part<>(records, function, results, from, middle, threshold),
+        new Part<>(records, function, results, middle, to, threshold));
+    }
+  }
+}
@@ -0,0 +1,447 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.models.Infosystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.DigestUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.DAYS;
+
+/**
+ * Published generations kept as content-addressed objects. Every distinct infosystem document is stored once, named by
+ * its digest, and a generation is a manifest of the digests and lengths of its documents in catalogue order. Keeping
+ * a generation costs a manifest entry per infosystem plus the documents that changed since the previous one.
+ * <p>
+ * Generations beyond {@code retainedGenerations} or older than {@code retainedDays} are pruned when a new one is
+ * committed. Generations are publishing times in epoch milliseconds, so their age is read from the generation itself.
+ * Documents are counted by the retained generations that refer to them and deleted when the count drops to zero, so
+ * committing and pruning read only the manifests committed or pruned. The counts are built from all manifests when the
+ * first generation is written after start, which also deletes documents left behind by a process that stopped
+ * halfway through writing a generation.
+ * <p>
+ * Generations are written one at a time.
+ */
+class SnapshotHistory {
+
+  private Logger logger = LoggerFactory.getLogger(SnapshotHistory.class);
+
+  private static final String MANIFEST = ".manifest";
+  private static final String OBJECT = ".json";
+  private static final int DIGEST_BYTES = 16;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final Path manifests;
+  private final Path objects;
+  private final int retainedGenerations;
+  private final int retainedDays;
+
+  /**
+   * Generations being read, their documents are not deleted.
+   */
+  private final Set<ArchivedGeneration> readers = new HashSet<>();
+
+  /**
+   * Number of retained generations referring to every stored document, null until the first generation is written.
+   */
+  private Map<Digest, Integer> references;
+
+  /**
+   * Documents no retained generation refers to, deleted once no generation being read refers to them either.
+   */
+  private final Set<Digest> unreferenced = new HashSet<>();
+
+  SnapshotHistory(Path directory, int retainedGenerations, int retainedDays) {
+    this.manifests = directory.resolve("generations");
+    this.objects = directory.resolve("objects");
+    this.retainedGenerations = retainedGenerations;
+    this.retainedDays = retainedDays;
+  }
+
+  /**
+   * Starts writing a generation, its documents are stored as they are added.
+   */
+  Writer writer() throws IOException {
+    Files.createDirectories(manifests);
+    references();
+    return new Writer(Files.createTempFile(manifests, "generation", ".tmp"));
+  }
+
+  /**
+   * @return retained generations, oldest first
+   */
+  List<Long> generations() {
+    List<Long> generations = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(manifests, "*" + MANIFEST)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          generations.add(Long.parseLong(name.substring(0, name.length() - MANIFEST.length())));
+        }
+        catch (NumberFormatException e) {
+          logger.warn("Ignoring unknown manifest {}", file);
+        }
+      }
+    }
+    catch (NoSuchFileException e) {
+      // nothing kept yet
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    Collections.sort(generations);
+    return generations;
+  }
+
+  /**
+   * Reads a retained generation. Its documents are not deleted before it is closed.
+   *
+   * @return the generation or null if it is not retained
+   */
+  synchronized ArchivedGeneration get(long generation) throws IOException {
+    Path manifest = manifest(generation);
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(manifest);
+    }
+    catch (NoSuchFileException e) {
+      return null;
+    }
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    int count = in.readInt();
+    List<Path> documents = new ArrayList<>(count);
+    long size = 2 + Math.max(0, count - 1);
+    for (int i = 0; i < count; i++) {
+      byte[] digest = new byte[DIGEST_BYTES];
+      in.readFully(digest);
+      documents.add(object(new Digest(digest)));
+      size += in.readInt();
+    }
+    ArchivedGeneration archived = new ArchivedGeneration(generation, documents, size,
+      "\"" + hex(DigestUtils.md5Digest(bytes)) + "\"", this::release);
+    readers.add(archived);
+    return archived;
+  }
+
+  private synchronized void release(ArchivedGeneration archived) {
+    readers.remove(archived);
+    deleteUnreferenced();
+  }
+
+  /**
+   * Counts the documents of all retained generations, deleting the stored documents none of them refers to.
+   */
+  private synchronized Map<Digest, Integer> references() throws IOException {
+    if (references != null) return references;
+
+    Map<Digest, Integer> counted = new HashMap<>();
+    for (long generation : generations()) {
+      for (Digest digest : documents(generation)) counted.merge(digest, 1, Integer::sum);
+    }
+    if (Files.isDirectory(objects)) {
+      try (Stream<Path> files = Files.walk(objects)) {
+        for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+          Digest digest = Digest.of(file.getFileName().toString());
+          if (digest == null) Files.deleteIfExists(file);
+          else if (!counted.containsKey(digest)) unreferenced.add(digest);
+        }
+      }
+    }
+    references = counted;
+    deleteUnreferenced();
+    return references;
+  }
+
+  /**
+   * Digests of the documents of a generation in catalogue order.
+   */
+  private List<Digest> documents(long generation) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest(generation))))) {
+      int count = in.readInt();
+      List<Digest> documents = new ArrayList<>(count);
+      byte[] digest = new byte[DIGEST_BYTES];
+      for (int i = 0; i < count; i++) {
+        in.readFully(digest);
+        in.readInt();
+        documents.add(new Digest(digest));
+      }
+      return documents;
+    }
+  }
+
+  private synchronized void committed(long generation) throws IOException {
+    for (Digest digest : documents(generation)) references.merge(digest, 1, Integer::sum);
+  }
+
+  /**
+   * Claims a document for a generation being written.
+   *
+   * @return false if a retained generation refers to the document, so it is stored already
+   */
+  private synchronized boolean claim(Digest digest) {
+    if (references.containsKey(digest)) return false;
+    unreferenced.remove(digest);
+    return true;
+  }
+
+  /**
+   * Deletes the documents claimed for a generation that was not committed, unless a committed one refers to them.
+   */
+  private synchronized void discard(Collection<Digest> claimed) {
+    for (Digest digest : claimed) {
+      if (!references.containsKey(digest)) unreferenced.add(digest);
+    }
+    deleteUnreferenced();
+  }
+
+  private void prune(long current) {
+    List<Long> generations = generations();
+    long oldest = retainedDays > 0 ? System.currentTimeMillis() - DAYS.toMillis(retainedDays) : Long.MIN_VALUE;
+    int pruned = 0;
+    for (int i = 0; i < generations.size(); i++) {
+      long generation = generations.get(i);
+      boolean beyondCount = retainedGenerations > 0 && i < generations.size() - retainedGenerations;
+      if (generation == current || !beyondCount && generation >= oldest) continue;
+      try {
+        remove(generation, documents(generation));
+        pruned++;
+      }
+      catch (IOException e) {
+        logger.error("Could not prune generation " + generation, e);
+      }
+    }
+    if (pruned > 0) {
+      logger.info("Pruned {} generations from history", pruned);
+      synchronized (this) {
+        deleteUnreferenced();
+      }
+    }
+  }
+
+  /**
+   * Deletes the manifest and stops counting its documents. Generations are read under the same lock, so a generation
+   * read while its manifest is pruned is either registered as a reader before or not read.
+   */
+  private synchronized void remove(long generation, List<Digest> documents) throws IOException {
+    Files.deleteIfExists(manifest(generation));
+    for (Digest digest : documents) {
+      if (references.merge(digest, -1, Integer::sum) > 0) continue;
+      references.remove(digest);
+      unreferenced.add(digest);
+    }
+  }
+
+  private void deleteUnreferenced() {
+    if (unreferenced.isEmpty()) return;
+
+    Set<Path> read = new HashSet<>();
+    for (ArchivedGeneration reader : readers) read.addAll(reader.getDocuments());
+    int deleted = 0;
+    for (Iterator<Digest> digests = unreferenced.iterator(); digests.hasNext(); ) {
+      Path object = object(digests.next());
+      if (read.contains(object)) continue;
+      try {
+        Files.deleteIfExists(object);
+        digests.remove();
+        deleted++;
+      }
+      catch (IOException e) {
+        logger.error("Could not delete unreferenced document " + object, e);
+      }
+    }
+    if (deleted > 0) logger.info("Deleted {} documents no longer referenced by history", deleted);
+  }
+
+  private Path manifest(long generation) {
+    return manifests.resolve(generation + MANIFEST);
+  }
+
+  private Path object(Digest digest) {
+    String hex = digest.toString();
+    return objects.resolve(hex.substring(0, 2)).resolve(hex + OBJECT);
+  }
+
+  private static String hex(byte[] bytes) {
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+      hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(hex);
+  }
+
+  /**
+   * Syncs a file or directory to disk, so a file renamed into a directory is found there after a crash.
+   */
+  private static void force(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, Files.isDirectory(path) ? READ : WRITE)) {
+      channel.force(true);
+    }
+  }
+
+  /**
+   * MD5 digest naming a stored document, kept as two longs rather than a hex string.
+   */
+  private static final class Digest {
+    final long high;
+    final long low;
+
+    Digest(byte[] digest) {
+      ByteBuffer buffer = ByteBuffer.wrap(digest);
+      this.high = buffer.getLong();
+      this.low = buffer.getLong();
+    }
+
+    /**
+     * @return digest of a document file name or null if it does not name a document
+     */
+    static Digest of(String fileName) {
+      if (fileName.length() != 2 * DIGEST_BYTES + OBJECT.length() || !fileName.endsWith(OBJECT)) return null;
+      byte[] digest = new byte[DIGEST_BYTES];
+      for (int i = 0; i < DIGEST_BYTES; i++) {
+        int high = Character.digit(fileName.charAt(2 * i), 16);
+        int low = Character.digit(fileName.charAt(2 * i + 1), 16);
+        if (high < 0 || low < 0) return null;
+        digest[i] = (byte) (high << 4 | low);
+      }
+      return new Digest(digest);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Digest)) return false;
+      Digest other = (Digest) o;
+      return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(high * 31 + low);
+    }
+
+    @Override
+    public String toString() {
+      char[] hex = new char[2 * DIGEST_BYTES];
+      for (int i = 0; i < 16; i++) {
+        hex[i] = HEX[(int) (high >>> (60 - 4 * i)) & 0xf];
+        hex[16 + i] = HEX[(int) (low >>> (60 - 4 * i)) & 0xf];
+      }
+      return new String(hex);
+    }
+  }
+
+  /**
+   * Writes a generation one infosystem at a time: documents that are not stored yet are stored right away, the
+   * manifest is kept in a temporary file until the generation is committed. The history is secondary to publishing,
+   * so a generation that cannot be written is logged and left out of it.
+   */
+  class Writer implements Closeable {
+    private final Path tmp;
+    private final DataOutputStream out;
+    private final Set<Digest> claimed = new HashSet<>();
+    private final List<Path> stored = new ArrayList<>();
+    private int count;
+    private boolean failed;
+    private boolean committed;
+
+    private Writer(Path tmp) throws IOException {
+      this.tmp = tmp;
+      this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)));
+      out.writeInt(0);
+    }
+
+    /**
+     * @param digest {@link ChangeLog#digest(Infosystem)} of the infosystem
+     */
+    void add(Infosystem infosystem, byte[] digest) {
+      if (failed) return;
+      try {
+        Digest document = new Digest(digest);
+        if (!claimed.contains(document) && claim(document)) {
+          claimed.add(document);
+          Path object = object(document);
+          if (!Files.exists(object)) {
+            Files.createDirectories(object.getParent());
+            Path objectTmp = object.resolveSibling(object.getFileName() + ".tmp");
+            Files.write(objectTmp, infosystem.getJsonBytes());
+            Files.move(objectTmp, object, ATOMIC_MOVE, REPLACE_EXISTING);
+          }
+          stored.add(object);
+        }
+        out.write(digest);
+        out.writeInt(infosystem.getJsonBytes().length);
+        count++;
+      }
+      catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    /**
+     * Keeps the added infosystems as the generation and prunes the history. The stored documents are synced to disk
+     * before the manifest referring to them is.
+     */
+    void commit(long generation) {
+      if (failed) return;
+      try {
+        Set<Path> directories = new HashSet<>();
+        for (Path object : stored) {
+          force(object);
+          directories.add(object.getParent());
+        }
+        for (Path directory : directories) force(directory);
+        if (!directories.isEmpty()) force(objects);
+
+        out.close();
+        try (RandomAccessFile file = new RandomAccessFile(tmp.toFile(), "rw")) {
+          file.writeInt(count);
+          file.getFD().sync();
+        }
+        Files.move(tmp, manifest(generation), ATOMIC_MOVE, REPLACE_EXISTING);
+        force(manifests);
+        committed(generation);
+        committed = true;
+      }
+      catch (IOException e) {
+        fail(e);
+        return;
+      }
+      prune(generation);
+    }
+
+    private void fail(IOException e) {
+      logger.error("Could not write generation to history " + manifests, e);
+      failed = true;
+    }
+
+    /**
+     * Discards the generation unless it has been committed, deleting the documents stored only for it.
+     */
+    @Override
+    public void close() {
+      if (committed) return;
+      try {
+        out.close();
+        Files.deleteIfExists(tmp);
+      }
+      catch (IOException e) {
+        logger.warn("Could not delete " + tmp, e);
+      }
+      discard(claimed);
+    }
+  }
+}
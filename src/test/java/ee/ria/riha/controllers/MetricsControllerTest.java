@@ -0,0 +1,25 @@
+package ee.ria.riha.controllers;
+
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
+
+public class MetricsControllerTest {
+
+  @Test
+  public void prometheus() throws Exception {
+    MetricsController controller = new MetricsController();
+    controller.meterRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+    controller.meterRegistry.counter("harvester.producer.records", "producer", "data-url", "outcome", "accepted").increment();
+
+    standaloneSetup(controller).build().perform(get("/prometheus"))
+      .andExpect(status().isOk())
+      .andExpect(content().string(containsString("harvester_producer_records_total{outcome=\"accepted\",producer=\"data-url\",} 1.0")));
+  }
+}
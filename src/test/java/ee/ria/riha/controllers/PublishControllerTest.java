@@ -0,0 +1,307 @@
+package ee.ria.riha.controllers;
+
+import ee.ria.riha.models.Infosystem;
+import ee.ria.riha.service.GenerationFile;
+import ee.ria.riha.service.InfosystemStorageService;
+import ee.ria.riha.service.PublishedSnapshot;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.StandardServletAsyncWebRequest;
+import org.springframework.web.context.request.async.WebAsyncManager;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Future;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
+
+public class PublishControllerTest {
+
+  private InfosystemStorageService storageService = new InfosystemStorageService();
+  private PublishController controller = new PublishController();
+  private MockMvc mvc;
+
+  @Before
+  public void setUp() throws Exception {
+    Path filePath = Files.createTempFile("", "");
+    ReflectionTestUtils.setField(storageService, "filePath", filePath);
+    storageService.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"http://base.url/shortname\"}"))));
+
+    controller.storageService = storageService;
+    mvc = standaloneSetup(controller).build();
+  }
+
+  @Test
+  public void infosystems() throws Exception {
+    mvc.perform(get("/systems.json"))
+      .andExpect(status().isOk())
+      .andExpect(header().string("ETag", storageService.snapshot().getEtag()))
+      .andExpect(content().json("[{\"uri\":\"http://base.url/shortname\"}]"));
+  }
+
+  @Test
+  public void infosystems_notModified() throws Exception {
+    mvc.perform(get("/systems.json").header("If-None-Match", storageService.snapshot().getEtag()))
+      .andExpect(status().isNotModified())
+      .andExpect(content().bytes(new byte[0]));
+  }
+
+  @Test
+  public void infosystems_gzipped() throws Exception {
+    mvc.perform(get("/systems.json").header("Accept-Encoding", "gzip, deflate"))
+      .andExpect(status().isOk())
+      .andExpect(header().string("Content-Encoding", "gzip"))
+      .andExpect(header().string("ETag", storageService.snapshot().getGzipEtag()))
+      .andExpect(content().bytes(storageService.snapshot().getGzipped()));
+  }
+
+  @Test
+  public void infosystems_notModifiedOnlyByEtagOfServedEncoding() throws Exception {
+    PublishedSnapshot snapshot = storageService.snapshot();
+    assertNotEquals(snapshot.getEtag(), snapshot.getGzipEtag());
+
+    mvc.perform(get("/systems.json").header("Accept-Encoding", "gzip").header("If-None-Match", snapshot.getGzipEtag()))
+      .andExpect(status().isNotModified())
+      .andExpect(header().string("ETag", snapshot.getGzipEtag()))
+      .andExpect(header().string("Vary", "Accept-Encoding"));
+    mvc.perform(get("/systems.json").header("If-None-Match", snapshot.getEtag()))
+      .andExpect(status().isNotModified())
+      .andExpect(header().string("Vary", "Accept-Encoding"));
+    mvc.perform(get("/systems.json").header("Accept-Encoding", "gzip").header("If-None-Match", snapshot.getEtag()))
+      .andExpect(status().isOk())
+      .andExpect(header().string("ETag", snapshot.getGzipEtag()))
+      .andExpect(header().string("Content-Encoding", "gzip"));
+    mvc.perform(get("/systems.json").header("If-None-Match", snapshot.getGzipEtag()))
+      .andExpect(status().isOk())
+      .andExpect(header().string("ETag", snapshot.getEtag()))
+      .andExpect(header().doesNotExist("Content-Encoding"));
+  }
+
+  @Test
+  public void infosystems_recordsLatencyAndBytes() throws Exception {
+    mvc.perform(get("/systems.json").header("Accept-Encoding", "gzip"));
+    mvc.perform(get("/systems.json").header("If-None-Match", storageService.snapshot().getEtag()));
+
+    MeterRegistry registry = controller.meterRegistry;
+    assertEquals(1, registry.find("publisher.systems").tags("response", "gzip").timer().count());
+    assertEquals(storageService.snapshot().getGzipped().length,
+      registry.find("publisher.systems.bytes").tags("response", "gzip").summary().totalAmount(), 0);
+    assertEquals(1, registry.find("publisher.systems").tags("response", "not_modified").timer().count());
+  }
+
+  @Test
+  public void acceptsGzip() {
+    assertTrue(PublishController.acceptsGzip("gzip"));
+    assertTrue(PublishController.acceptsGzip("deflate, GZIP;q=0.5"));
+    assertFalse(PublishController.acceptsGzip("gzip;q=0"));
+    assertFalse(PublishController.acceptsGzip("deflate"));
+    assertFalse(PublishController.acceptsGzip(null));
+  }
+
+  @Test
+  public void infosystems_zeroCopyFromGenerationFile() throws Exception {
+    ReflectionTestUtils.setField(storageService, "zeroCopy", true);
+    storageService.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"http://base.url/other\"}"))));
+    String etag;
+    try (GenerationFile generation = storageService.openGeneration()) {
+      etag = generation.getEtag();
+    }
+
+    mvc.perform(get("/systems.json"))
+      .andExpect(status().isOk())
+      .andExpect(header().string("ETag", etag))
+      .andExpect(content().json("[{\"uri\":\"http://base.url/other\"}]"));
+    mvc.perform(get("/systems.json").header("If-None-Match", etag))
+      .andExpect(status().isNotModified());
+  }
+
+  @Test
+  public void infosystems_streamed() throws Exception {
+    controller.streaming = true;
+    controller.chunkBytes = 4;
+
+    MvcResult result = mvc.perform(get("/systems.json").header("Accept-Encoding", "gzip"))
+      .andExpect(request().asyncStarted())
+      .andReturn();
+    result.getAsyncResult();
+
+    MockHttpServletResponse response = result.getResponse();
+    assertEquals(200, response.getStatus());
+    assertEquals(storageService.snapshot().getGzipEtag(), response.getHeader("ETag"));
+    assertEquals("gzip", response.getHeader("Content-Encoding"));
+    assertEquals(singletonList("Accept-Encoding"), response.getHeaders("Vary"));
+    assertArrayEquals(storageService.snapshot().getGzipped(), response.getContentAsByteArray());
+    assertEquals(1, controller.meterRegistry.find("publisher.systems").tags("response", "gzip").timer().count());
+  }
+
+  @Test
+  public void infosystems_streamedFromGenerationFile() throws Exception {
+    controller.streaming = true;
+    ReflectionTestUtils.setField(storageService, "zeroCopy", true);
+    storageService.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"http://base.url/other\"}"))));
+
+    MvcResult result = mvc.perform(get("/systems.json"))
+      .andExpect(request().asyncStarted())
+      .andReturn();
+    result.getAsyncResult();
+
+    assertEquals(200, result.getResponse().getStatus());
+    JSONAssert.assertEquals("[{\"uri\":\"http://base.url/other\"}]", result.getResponse().getContentAsString(), true);
+  }
+
+  @Test
+  public void infosystems_streamingClosesGenerationFileWhenRejected() throws Exception {
+    controller.streaming = true;
+    GenerationFile generation = mock(GenerationFile.class);
+    when(generation.getEtag()).thenReturn("\"etag\"");
+    when(generation.getSize()).thenReturn(2L);
+    controller.storageService = mock(InfosystemStorageService.class);
+    when(controller.storageService.isZeroCopy()).thenReturn(true);
+    when(controller.storageService.openGeneration()).thenReturn(generation);
+
+    MockHttpServletRequest servletRequest = new MockHttpServletRequest("GET", "/systems.json");
+    servletRequest.setAsyncSupported(true);
+    MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+    ServletWebRequest request = new ServletWebRequest(servletRequest, servletResponse);
+    WebAsyncManager asyncManager = WebAsyncUtils.getAsyncManager(request);
+    asyncManager.setAsyncWebRequest(new StandardServletAsyncWebRequest(servletRequest, servletResponse));
+    asyncManager.setTaskExecutor(new SimpleAsyncTaskExecutor() {
+      @Override
+      public Future<?> submit(Runnable task) {
+        throw new TaskRejectedException("Queue is full");
+      }
+    });
+
+    StreamingResponseBody body = controller.infosystems(request, null, null, null, servletResponse).getBody();
+    try {
+      asyncManager.startCallableProcessing(() -> {
+        body.writeTo(servletResponse.getOutputStream());
+        return null;
+      });
+      fail("Expected the task to be rejected");
+    }
+    catch (TaskRejectedException e) {
+      servletRequest.getAsyncContext().complete();
+    }
+
+    verify(generation).close();
+    verify(generation, never()).transferTo(any());
+  }
+
+  @Test
+  public void infosystems_streamingNotModified() throws Exception {
+    controller.streaming = true;
+
+    mvc.perform(get("/systems.json").header("If-None-Match", storageService.snapshot().getEtag()))
+      .andExpect(status().isNotModified());
+  }
+
+  @Test
+  public void infosystems_archivedGeneration() throws Exception {
+    ReflectionTestUtils.setField(storageService, "historyGenerations", 10);
+    storageService.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"http://base.url/old\"}"))));
+    long generation = storageService.archivedGenerations().get(0);
+    storageService.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"http://base.url/new\"}"))));
+
+    String etag = mvc.perform(get("/systems.json").param("generation", String.valueOf(generation)))
+      .andExpect(status().isOk())
+      .andExpect(content().json("[{\"uri\":\"http://base.url/old\"}]"))
+      .andReturn().getResponse().getHeader("ETag");
+    mvc.perform(get("/systems.json").param("generation", String.valueOf(generation)).header("If-None-Match", etag))
+      .andExpect(status().isNotModified());
+    mvc.perform(get("/generations"))
+      .andExpect(status().isOk())
+      .andExpect(content().json("{\"generations\":[" + generation + "," + storageService.archivedGenerations().get(1) + "]}"));
+  }
+
+  @Test
+  public void infosystems_unknownGeneration() throws Exception {
+    mvc.perform(get("/systems.json").param("generation", "1"))
+      .andExpect(status().isNotFound());
+  }
+
+  @Test
+  public void infosystems_streamedArchivedGeneration() throws Exception {
+    controller.streaming = true;
+    ReflectionTestUtils.setField(storageService, "historyGenerations", 10);
+    storageService.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"http://base.url/old\"}"))));
+
+    MvcResult result = mvc.perform(get("/systems.json").param("generation", String.valueOf(storageService.archivedGenerations().get(0))))
+      .andExpect(request().asyncStarted())
+      .andReturn();
+    result.getAsyncResult();
+
+    JSONAssert.assertEquals("[{\"uri\":\"http://base.url/old\"}]", result.getResponse().getContentAsString(), true);
+  }
+
+  @Test
+  public void infosystems_projected() throws Exception {
+    PublishedSnapshot projection = storageService.projection("uri");
+
+    mvc.perform(get("/systems.json").param("fields", "uri").header("Accept-Encoding", "gzip"))
+      .andExpect(status().isOk())
+      .andExpect(header().string("ETag", projection.getGzipEtag()))
+      .andExpect(header().string("Content-Encoding", "gzip"))
+      .andExpect(content().bytes(projection.getGzipped()));
+    mvc.perform(get("/systems.json").param("fields", "uri").header("If-None-Match", projection.getEtag()))
+      .andExpect(status().isNotModified());
+  }
+
+  @Test
+  public void infosystems_projectedWithZeroCopy() throws Exception {
+    ReflectionTestUtils.setField(storageService, "zeroCopy", true);
+
+    mvc.perform(get("/systems.json").param("fields", "owner.code"))
+      .andExpect(status().isOk())
+      .andExpect(content().string("[{}]"));
+  }
+
+  @Test
+  public void infosystems_invalidFields() throws Exception {
+    mvc.perform(get("/systems.json").param("fields", "owner..code"))
+      .andExpect(status().isBadRequest());
+    mvc.perform(get("/systems.json").param("fields", "uri").param("generation", "1"))
+      .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  public void changes() throws Exception {
+    mvc.perform(get("/changes"))
+      .andExpect(status().isOk())
+      .andExpect(content().json("{\"full\":true,\"updated\":[{\"uri\":\"http://base.url/shortname\"}],\"removed\":[]}"));
+  }
+
+  @Test
+  public void query() throws Exception {
+    mvc.perform(get("/systems").param("uri", "http://base.url/shortname"))
+      .andExpect(status().isOk())
+      .andExpect(content().json("{\"infosystems\":[{\"uri\":\"http://base.url/shortname\"}],\"next\":null}"));
+  }
+}
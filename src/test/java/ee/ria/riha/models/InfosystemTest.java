@@ -0,0 +1,95 @@
+package ee.ria.riha.models;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.skyscreamer.jsonassert.JSONAssert;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class InfosystemTest {
+
+  private static final String JSON = "{\"uri\":\"http://base.url/shortname\",\"name\":\"nimi\",\"documentation\":null," +
+    "\"owner\":{\"code\":\"70000740\",\"meta\":{\"system_status\":{\"timestamp\":\"2000-01-01T00:00:00\"}}}," +
+    "\"meta\":{\"system_status\":{\"status\":\"INUSE\",\"timestamp\":\"2016-01-02T03:04:05\"}}}";
+
+  @Test
+  public void extractsFieldsOnce() {
+    Infosystem infosystem = new Infosystem(JSON.getBytes(UTF_8), "hash");
+
+    assertEquals("http://base.url/shortname", infosystem.getId());
+    assertEquals("70000740", infosystem.getOwner());
+    assertEquals("2016-01-02T03:04:05", infosystem.getTimestamp());
+    assertEquals(LocalDateTime.of(2016, 1, 2, 3, 4, 5), infosystem.getUpdated());
+    assertEquals("INUSE", infosystem.getString("meta", "system_status", "status"));
+    assertEquals("hash", infosystem.getContentHash());
+  }
+
+  @Test
+  public void keepsOriginalDocument() {
+    byte[] json = JSON.getBytes(UTF_8);
+    Infosystem infosystem = new Infosystem(json, null);
+
+    assertSame(json, infosystem.getJsonBytes());
+    assertEquals(JSON, infosystem.toJsonString());
+  }
+
+  @Test
+  public void missingOrInvalidTimestampIsOldest() {
+    Infosystem missing = new Infosystem(new JSONObject().put("uri", "uri"));
+    Infosystem invalid = new Infosystem(new JSONObject("{\"meta\":{\"system_status\":{\"timestamp\":\"yesterday\"}}}"));
+    assertNull(missing.getUpdated());
+    assertNull(invalid.getUpdated());
+    assertEquals(Infosystem.NO_TIMESTAMP, missing.getUpdatedSeconds());
+    assertTrue(Infosystem.BY_UPDATED.compare(missing, new Infosystem(JSON.getBytes(UTF_8), null)) < 0);
+    assertEquals(0, Infosystem.BY_UPDATED.compare(missing, invalid));
+  }
+
+  @Test
+  public void keepsSubMillisecondTimestamp() {
+    Infosystem older = new Infosystem(new JSONObject("{\"meta\":{\"system_status\":{\"timestamp\":\"2016-09-05T00:36:26.255100\"}}}"));
+    Infosystem newer = new Infosystem(new JSONObject("{\"meta\":{\"system_status\":{\"timestamp\":\"2016-09-05T00:36:26.255900\"}}}"));
+
+    assertEquals(LocalDateTime.of(2016, 9, 5, 0, 36, 26, 255_900_000), newer.getUpdated());
+    assertEquals(older.getUpdatedSeconds(), newer.getUpdatedSeconds());
+    assertEquals(255_900_000, newer.getUpdatedNanos());
+    assertTrue(Infosystem.BY_UPDATED.compare(older, newer) < 0);
+  }
+
+  @Test
+  public void withApprovalCopiesDocument() throws Exception {
+    Infosystem infosystem = new Infosystem(JSON.getBytes(UTF_8), "hash");
+
+    Infosystem approved = infosystem.withApproval(new JSONObject().put("status", "KOOSKÕLASTATUD"));
+
+    assertEquals(JSON, infosystem.toJsonString());
+    assertEquals("KOOSKÕLASTATUD", approved.getString("meta", "approval_status", "status"));
+    assertEquals("hash", approved.getContentHash());
+    assertEquals(infosystem.getUpdated(), approved.getUpdated());
+    JSONObject expected = new JSONObject(JSON);
+    expected.getJSONObject("meta").put("approval_status", new JSONObject().put("status", "KOOSKÕLASTATUD"));
+    JSONAssert.assertEquals(expected.toString(), approved.toJsonString(), true);
+  }
+
+  @Test
+  public void getJsonReturnsCopy() {
+    Infosystem infosystem = new Infosystem(JSON.getBytes(UTF_8), null);
+
+    infosystem.getJson().put("name", "changed");
+
+    assertEquals("nimi", infosystem.getJson().getString("name"));
+  }
+
+  @Test
+  public void listOfSkipsNonObjects() {
+    List<Infosystem> infosystems = Infosystem.listOf("[{\"uri\":\"uri1\"},1,null,{\"uri\":\"uri2\"}]".getBytes(UTF_8));
+
+    assertEquals(2, infosystems.size());
+    assertEquals("uri1", infosystems.get(0).getId());
+    assertEquals("{\"uri\":\"uri2\"}", infosystems.get(1).toJsonString());
+    assertTrue(Infosystem.listOf(new byte[0]).isEmpty());
+  }
+}
@@ -0,0 +1,46 @@
+package ee.ria.riha.service;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.*;
+
+public class ApprovalStoreTest {
+
+  private Path path;
+
+  @Before
+  public void setUp() throws Exception {
+    path = Files.createTempDirectory("approvals").resolve("approvals.json");
+  }
+
+  @Test
+  public void unknownUntilFirstUpdate() {
+    assertNull(new ApprovalStore(path).get());
+  }
+
+  @Test
+  public void detectsChangedApprovals() {
+    ApprovalStore store = new ApprovalStore(path);
+
+    assertTrue(store.update(singletonMap("uri1", new JSONObject().put("status", "A"))));
+    assertFalse(store.update(singletonMap("uri1", new JSONObject().put("status", "A"))));
+    assertTrue(store.update(singletonMap("uri1", new JSONObject().put("status", "B"))));
+    assertEquals("B", store.get().get("uri1").getString("status"));
+  }
+
+  @Test
+  public void keepsApprovalsOverRestart() {
+    new ApprovalStore(path).update(singletonMap("uri1", new JSONObject().put("status", "A")));
+
+    ApprovalStore restarted = new ApprovalStore(path);
+
+    assertEquals("A", restarted.get().get("uri1").getString("status"));
+    assertFalse(restarted.update(singletonMap("uri1", new JSONObject().put("status", "A"))));
+  }
+}
@@ -0,0 +1,93 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.models.Infosystem;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.skyscreamer.jsonassert.JSONAssert;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+public class ChangeLogTest {
+
+  private Path path;
+  private ChangeLog changeLog;
+  private Map<String, byte[]> published = new HashMap<>();
+
+  @Before
+  public void setUp() throws Exception {
+    path = Files.createTempFile("changes", ".log");
+    Files.delete(path);
+    changeLog = new ChangeLog(path, 2, () -> "[]".getBytes(UTF_8), published::get);
+  }
+
+  @Test
+  public void returnsChangesSinceGeneration() throws Exception {
+    record(changeLog, 10, infosystem("uri1", "a"), infosystem("uri2", "a"));
+    record(changeLog, 20, infosystem("uri1", "b"), infosystem("uri2", "a"), infosystem("uri3", "a"));
+    record(changeLog, 30, infosystem("uri1", "b"), infosystem("uri3", "a"));
+
+    JSONAssert.assertEquals("{\"generation\":30,\"full\":false,\"updated\":[" +
+        "{\"uri\":\"uri1\",\"name\":\"b\"},{\"uri\":\"uri3\",\"name\":\"a\"}],\"removed\":[\"uri2\"]}",
+      changeLog.since(10L), true);
+    JSONAssert.assertEquals("{\"generation\":30,\"full\":false,\"updated\":[],\"removed\":[\"uri2\"]}",
+      changeLog.since(20L), true);
+    JSONAssert.assertEquals("{\"generation\":30,\"full\":false,\"updated\":[],\"removed\":[]}",
+      changeLog.since(30L), true);
+  }
+
+  @Test
+  public void returnsFullCatalogueForUnknownGeneration() throws Exception {
+    record(changeLog, 10, infosystem("uri1", "a"));
+    record(changeLog, 20, infosystem("uri1", "b"));
+    record(changeLog, 30, infosystem("uri1", "c"));
+
+    String full = "{\"generation\":30,\"full\":true,\"updated\":[{\"uri\":\"uri1\",\"name\":\"c\"}],\"removed\":[]}";
+    JSONAssert.assertEquals(full, changeLog.since(null), true);
+    JSONAssert.assertEquals(full, changeLog.since(5L), true);
+    JSONAssert.assertEquals(full, changeLog.since(40L), true);
+  }
+
+  @Test
+  public void continuesLogAfterRestart() throws Exception {
+    record(changeLog, 10, infosystem("uri1", "a"));
+    record(changeLog, 20, infosystem("uri1", "a"), infosystem("uri2", "a"));
+
+    ChangeLog restarted = new ChangeLog(path, 2, () -> "[{\"uri\":\"uri1\",\"name\":\"a\"},{\"uri\":\"uri2\",\"name\":\"a\"}]".getBytes(UTF_8), published::get);
+
+    assertEquals(20, restarted.lastGeneration());
+    JSONAssert.assertEquals("{\"generation\":20,\"full\":false,\"updated\":[{\"uri\":\"uri2\",\"name\":\"a\"}],\"removed\":[]}",
+      restarted.since(10L), true);
+  }
+
+  @Test
+  public void existingCatalogueWithoutLogHasUnknownHistory() throws Exception {
+    ChangeLog changeLog = new ChangeLog(path, 2, () -> "[{\"uri\":\"uri1\",\"name\":\"a\"}]".getBytes(UTF_8), published::get);
+    record(changeLog, 10, infosystem("uri1", "a"), infosystem("uri2", "a"));
+
+    JSONAssert.assertEquals("{\"generation\":10,\"full\":true,\"updated\":[" +
+        "{\"uri\":\"uri1\",\"name\":\"a\"},{\"uri\":\"uri2\",\"name\":\"a\"}],\"removed\":[]}",
+      changeLog.since(0L), true);
+  }
+
+  private void record(ChangeLog changeLog, long generation, Infosystem... infosystems) {
+    Map<String, byte[]> digests = new LinkedHashMap<>();
+    published.clear();
+    for (Infosystem infosystem : infosystems) {
+      digests.put(infosystem.getId(), ChangeLog.digest(infosystem));
+      published.put(infosystem.getId(), infosystem.getJsonBytes());
+    }
+    changeLog.record(generation, digests);
+  }
+
+  private Infosystem infosystem(String uri, String name) {
+    return new Infosystem(new JSONObject().put("uri", uri).put("name", name));
+  }
+}
@@ -0,0 +1,48 @@
+package ee.ria.riha.service;
+
+import org.apache.http.client.methods.HttpGet;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.apache.http.HttpHeaders.IF_MODIFIED_SINCE;
+import static org.apache.http.HttpHeaders.IF_NONE_MATCH;
+import static org.junit.Assert.*;
+
+public class ConditionalResponseCacheTest {
+
+  private ConditionalResponseCache cache = new ConditionalResponseCache();
+
+  @Test
+  public void addsValidatorsOfCachedResponse() {
+    cache.put("url", new ProducerResponse(null, "\"v1\"", "Wed, 21 Oct 2015 07:28:00 GMT"), "content", null);
+
+    HttpGet request = new HttpGet("http://url");
+    cache.addConditionalHeaders("url", request);
+
+    assertEquals("\"v1\"", request.getFirstHeader(IF_NONE_MATCH).getValue());
+    assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", request.getFirstHeader(IF_MODIFIED_SINCE).getValue());
+    assertEquals("content", cache.get("url"));
+  }
+
+  @Test
+  public void doesNotCacheResponseWithoutValidators() {
+    cache.put("url", new ProducerResponse(null, null, null), "content", null);
+
+    HttpGet request = new HttpGet("http://url");
+    cache.addConditionalHeaders("url", request);
+
+    assertNull(request.getFirstHeader(IF_NONE_MATCH));
+    assertNull(cache.get("url"));
+  }
+
+  @Test
+  public void evictsContentProcessedWithDifferentVariant() {
+    cache.put("url", new ProducerResponse(null, "\"v1\"", null), "content", asList("owner1"));
+
+    cache.evictIfVariantChanged("url", asList("owner1"));
+    assertEquals("content", cache.get("url"));
+
+    cache.evictIfVariantChanged("url", asList("owner1", "owner2"));
+    assertNull(cache.get("url"));
+  }
+}
@@ -0,0 +1,124 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.models.Infosystem;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ExternalInfosystemMergerTest {
+
+  private Path directory;
+  private ExternalInfosystemMerger merger;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("harvest-spill");
+    merger = new ExternalInfosystemMerger(directory, 2);
+  }
+
+  @After
+  public void tearDown() {
+    merger.close();
+  }
+
+  @Test
+  public void keepsMostRecentInfosystem() {
+    merger.add(0, asList(infosystem("uri1", "2015-01-01T00:00:00", "old")));
+    merger.add(1, asList(infosystem("uri1", "2016-01-01T00:00:00", "new")));
+
+    assertEquals(asList("new"), names(merger.result()));
+  }
+
+  @Test
+  public void comparesTimestampsBelowMilliseconds() {
+    merger.add(0, asList(infosystem("uri1", "2016-09-05T00:36:26.255100", "older")));
+    merger.add(1, asList(infosystem("uri1", "2016-09-05T00:36:26.255900", "newer")));
+
+    assertEquals(asList("newer"), names(merger.result()));
+  }
+
+  @Test
+  public void equallyRecentInfosystemsAreResolvedByHarvestOrder() {
+    merger.add(1, asList(infosystem("uri1", "2016-01-01T00:00:00", "second producer")));
+    merger.add(0, asList(infosystem("uri1", "2016-01-01T00:00:00", "first producer")));
+
+    assertEquals(asList("first producer"), names(merger.result()));
+  }
+
+  @Test
+  public void missingTimestampIsOlderThanAnyOther() {
+    merger.add(0, asList(new Infosystem(new JSONObject().put("uri", "uri1").put("name", "no timestamp"))));
+    merger.add(1, asList(infosystem("uri1", "2000-01-01T00:00:00", "timestamp")));
+
+    assertEquals(asList("timestamp"), names(merger.result()));
+  }
+
+  @Test
+  public void resultIsOrderedByHarvestOrderOfWinners() {
+    merger.add(1, asList(infosystem("uri2", "2016-01-01T00:00:00", "b"), infosystem("uri1", "2016-01-01T00:00:00", "c")));
+    merger.add(0, asList(infosystem("uri1", "2015-01-01T00:00:00", "a"), infosystem("uri3", "2015-01-01T00:00:00", "d")));
+
+    assertEquals(asList("d", "b", "c"), names(merger.result()));
+  }
+
+  @Test
+  public void mergesSameAsInMemory() throws Exception {
+    InfosystemMerger inMemory = new InfosystemMerger();
+    merger.close();
+    merger = new ExternalInfosystemMerger(directory, 1000);
+    for (int producer = 0; producer < 10; producer++) {
+      List<Infosystem> infosystems = new ArrayList<>();
+      for (int i = 0; i < 5_000; i++) {
+        int uri = (i * 7 + producer * 13) % 6_000;
+        infosystems.add(infosystem("uri" + uri, "2016-01-01T00:00:0" + (uri + producer) % 10, "name" + producer));
+      }
+      merger.add(producer, infosystems);
+      inMemory.add(producer, infosystems);
+    }
+
+    Collection<Infosystem> result = merger.result();
+    assertEquals(inMemory.result().size(), result.size());
+    assertEquals(json(inMemory.result()), json(result));
+    assertEquals(json(result), json(merger.result()));
+  }
+
+  @Test
+  public void deletesSpillFilesOnClose() throws Exception {
+    merger.add(0, asList(infosystem("uri1", "2016-01-01T00:00:00", "a"), infosystem("uri2", "2016-01-01T00:00:00", "b")));
+    merger.result();
+
+    merger.result().close();
+
+    try (Stream<Path> files = Files.list(directory)) {
+      assertFalse(files.findAny().isPresent());
+    }
+  }
+
+  private Infosystem infosystem(String uri, String timestamp, String name) {
+    return new Infosystem(new JSONObject()
+      .put("uri", uri)
+      .put("name", name)
+      .put("meta", new JSONObject().put("system_status", new JSONObject().put("timestamp", timestamp))));
+  }
+
+  private List<String> json(Collection<Infosystem> infosystems) {
+    return infosystems.stream().map(Infosystem::toJsonString).collect(toList());
+  }
+
+  private List<String> names(Collection<Infosystem> infosystems) {
+    return infosystems.stream().map(infosystem -> infosystem.getJson().getString("name")).collect(toList());
+  }
+}
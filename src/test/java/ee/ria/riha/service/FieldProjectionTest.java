@@ -0,0 +1,85 @@
+package ee.ria.riha.service;
+
+import org.junit.Test;
+import org.skyscreamer.jsonassert.JSONAssert;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class FieldProjectionTest {
+
+  private static final String CATALOGUE = "[" +
+    "{\"uri\":\"uri1\",\"name\":\"Süsteem\",\"owner\":{\"code\":\"1\",\"name\":\"Asutus\"}," +
+    "\"meta\":{\"approval_status\":{\"status\":\"KOOSKÕLASTATUD\",\"timestamp\":\"2016-01-01T00:00:00\"},\"system_status\":{\"status\":\"KASUTUSEL\"}}}," +
+    "{\"uri\":\"uri2\",\"owner\":\"2\",\"documents\":[{\"url\":\"a\"}]}]";
+
+  @Test
+  public void copiesSelectedFieldsInDocumentOrder() throws Exception {
+    String projected = project("meta.approval_status, uri,owner.code");
+
+    assertEquals("[{\"uri\":\"uri1\",\"owner\":{\"code\":\"1\"},\"meta\":{\"approval_status\":" +
+      "{\"status\":\"KOOSKÕLASTATUD\",\"timestamp\":\"2016-01-01T00:00:00\"}}},{\"uri\":\"uri2\"}]", projected);
+  }
+
+  @Test
+  public void copiesWholeFieldsWithNestedArrays() throws Exception {
+    JSONAssert.assertEquals("[{\"owner\":{\"code\":\"1\",\"name\":\"Asutus\"}},{\"owner\":\"2\",\"documents\":[{\"url\":\"a\"}]}]",
+      project("owner,documents"), true);
+  }
+
+  @Test
+  public void normalizesKey() {
+    assertEquals("meta,owner.code,uri", FieldProjection.parse(" uri,owner.code,meta.approval_status,meta,uri,").getKey());
+    assertEquals(FieldProjection.parse("owner.code,uri").getKey(), FieldProjection.parse("uri,owner.code").getKey());
+  }
+
+  @Test
+  public void noFields() {
+    assertNull(FieldProjection.parse(null));
+    assertNull(FieldProjection.parse(" , "));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsEmptyFieldName() {
+    FieldProjection.parse("owner..code");
+  }
+
+  @Test
+  public void limitsNumberAndLengthOfPaths() {
+    StringBuilder fields = new StringBuilder();
+    for (int i = 0; i < FieldProjection.MAX_PATHS; i++) fields.append("field").append(i).append(',');
+    assertEquals(FieldProjection.MAX_PATHS, FieldProjection.parse(fields.toString()).getKey().split(",").length);
+
+    try {
+      FieldProjection.parse(fields + "one.more");
+      fail("Expected too many fields to be rejected");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      FieldProjection.parse(new String(new char[FieldProjection.MAX_PATH_LENGTH + 1]).replace('\0', 'a'));
+      fail("Expected too long field to be rejected");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void encodesProjection() throws Exception {
+    PublishedSnapshot projection = FieldProjection.parse("uri").apply(new ByteArrayInputStream(CATALOGUE.getBytes(UTF_8)));
+
+    assertEquals(PublishedSnapshot.of(projection.getJson()).getEtag(), projection.getEtag());
+    assertEquals("[]", new String(FieldProjection.parse("uri").apply(new ByteArrayInputStream("[]".getBytes(UTF_8))).getJson(), UTF_8));
+  }
+
+  private static String project(String fields) throws IOException {
+    return new String(FieldProjection.parse(fields).apply(new ByteArrayInputStream(CATALOGUE.getBytes(UTF_8))).getJson(), UTF_8);
+  }
+}
@@ -0,0 +1,92 @@
+package ee.ria.riha.service;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class HarvestEndToEndTest {
+
+  private StubProducerServer server;
+  private HarvestService service = new HarvestService();
+  private InfosystemStorageService storageService = new InfosystemStorageService();
+  private Properties producers = new Properties();
+
+  @Before
+  public void setUp() throws Exception {
+    server = new StubProducerServer();
+    Path directory = Files.createTempDirectory("harvest");
+    storageService.filePath = directory.resolve("infosystems.json");
+    service.infosystemStorageService = storageService;
+    service.producerRegistry = new ProducerRegistry(directory.resolve("producers.db"));
+    service.approvalStore = new ApprovalStore(directory.resolve("approvals.json"));
+    service.shardStore = new ProducerShardStore(directory.resolve("producer-shards"));
+    service.harvestIndex = new HarvestIndex(directory.resolve("harvest-index.json"));
+    service.legacyProducerUrl = "";
+    service.approvalsUrl = server.serve("/approvals", new JSONArray()
+      .put(new JSONObject().put("uri", "uri1").put("status", "KOOSKÕLASTATUD").put("timestamp", "2016-01-01T00:00:00"))
+      .toString()).url;
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    service.close();
+    server.close();
+  }
+
+  @Test
+  public void harvestsOverHttpSkippingFaultyProducersAndRecords() throws Exception {
+    producers.setProperty(server.serve("/ok", new JSONArray()
+      .put(infosystem("uri1", "1"))
+      .put(infosystem("uri2", "1").put("owner", new JSONObject().put("code", "2")))
+      .put(infosystem("uri3", "1").put("shortname", JSONObject.NULL))
+      .toString()).url, "1");
+    producers.setProperty(server.serve("/failing", new JSONArray().put(infosystem("uri4", "1")).toString())
+      .setErrorRatio(1).url, "1");
+    producers.setProperty(server.serve("/truncated", new JSONArray().put(infosystem("uri5", "1")).toString())
+      .setTruncatedRatio(1).url, "1");
+    service.producerRegistry.update(producers);
+
+    service.harvestInfosystems();
+
+    JSONArray published = new JSONArray(storageService.load());
+    assertEquals(1, published.length());
+    assertEquals("uri1", published.getJSONObject(0).getString("uri"));
+    assertEquals("KOOSKÕLASTATUD", published.getJSONObject(0).getJSONObject("meta").getJSONObject("approval_status").getString("status"));
+  }
+
+  @Test
+  public void doesNotWaitForProducerSlowerThanTimeout() throws Exception {
+    service.producerTimeoutSeconds = 1;
+    producers.setProperty(server.serve("/ok", new JSONArray().put(infosystem("uri1", "1")).toString()).url, "1");
+    String slow = server.serve("/slow", new JSONArray().put(infosystem("uri2", "1")).toString())
+      .setLatencyMillis(30_000).url;
+    producers.setProperty(slow, "1");
+    service.producerRegistry.update(producers);
+
+    long started = System.currentTimeMillis();
+    service.harvestInfosystems();
+
+    JSONArray published = new JSONArray(storageService.load());
+    assertEquals(1, published.length());
+    assertEquals("uri1", published.getJSONObject(0).getString("uri"));
+    assertEquals(1, service.schedules.get(slow).getFailures());
+    assertNull(service.meterRegistry.find("harvester.producer.responses").tags("producer", slow, "status", "ok").counter());
+    assertTrue(System.currentTimeMillis() - started < 20_000);
+  }
+
+  private static JSONObject infosystem(String uri, String owner) {
+    return new JSONObject()
+      .put("uri", uri)
+      .put("shortname", "short-" + uri)
+      .put("owner", new JSONObject().put("code", owner))
+      .put("meta", new JSONObject().put("system_status", new JSONObject().put("timestamp", "2016-01-01T00:00:00")));
+  }
+}
@@ -0,0 +1,79 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.models.Infosystem;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class HarvestIndexTest {
+
+  private Path path;
+  private HarvestIndex index;
+
+  @Before
+  public void setUp() throws Exception {
+    path = Files.createTempFile("harvest-index", ".json");
+    Files.delete(path);
+    index = new HarvestIndex(path);
+    index.useSchema("schema-1");
+  }
+
+  @Test
+  public void reusesPublishedInfosystemWhenApprovalIsSame() {
+    Infosystem harvested = infosystem("uri1", "hash1");
+    Infosystem published = harvested.withApproval(new JSONObject().put("status", "KOOSKÕLASTATUD"));
+    index.update(singletonList(harvested), singletonList(published), Collections.singletonMap("uri1", new JSONObject().put("status", "KOOSKÕLASTATUD")));
+
+    assertSame(harvested, index.harvested("uri1", "hash1"));
+    assertNull(index.harvested("uri1", "hash2"));
+    assertSame(published, index.published(harvested, new JSONObject().put("status", "KOOSKÕLASTATUD")));
+    assertNull(index.published(harvested, new JSONObject().put("status", "MITTE KOOSKÕLASTATUD")));
+    assertNull(index.published(harvested, null));
+  }
+
+  @Test
+  public void persistsHashesAcrossRestarts() {
+    Infosystem harvested = infosystem("uri1", "hash1");
+    index.update(singletonList(harvested), singletonList(harvested), Collections.emptyMap());
+
+    HarvestIndex restarted = new HarvestIndex(path);
+    restarted.useSchema("schema-1");
+    assertTrue(restarted.isUnchanged("uri1", "hash1"));
+    assertFalse(restarted.isUnchanged("uri1", "hash2"));
+    assertNull(restarted.harvested("uri1", "hash1"));
+  }
+
+  @Test
+  public void keepsOnlyHashesWithoutPublishedInfosystems() throws Exception {
+    Infosystem harvested = infosystem("uri1", "hash1");
+    index.update(singletonList(harvested), null, null);
+
+    assertTrue(index.isUnchanged("uri1", "hash1"));
+    assertNull(index.harvested("uri1", "hash1"));
+    assertNull(index.published(harvested, null));
+    assertEquals("{\"schemaVersion\":\"schema-1\",\"entries\":{\"uri1\":{\"hash\":\"hash1\"}}}",
+      new String(Files.readAllBytes(path), UTF_8));
+  }
+
+  @Test
+  public void schemaChangeDiscardsIndex() {
+    Infosystem harvested = infosystem("uri1", "hash1");
+    index.update(singletonList(harvested), singletonList(harvested), Collections.emptyMap());
+
+    index.useSchema("schema-2");
+
+    assertFalse(index.isUnchanged("uri1", "hash1"));
+  }
+
+  private Infosystem infosystem(String uri, String contentHash) {
+    return new Infosystem(new JSONObject().put("uri", uri).put("meta", new JSONObject()), contentHash);
+  }
+}
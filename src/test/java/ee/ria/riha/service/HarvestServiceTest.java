@@ -1,11 +1,13 @@
 package ee.ria.riha.service;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import ee.ria.riha.models.Infosystem;
 import ee.ria.riha.models.InfosystemJson;
 import ee.ria.riha.models.InfosystemJson.ApprovalStatus;
 import ee.ria.riha.models.InfosystemJson.Meta;
 import ee.ria.riha.models.InfosystemJson.Owner;
 import ee.ria.riha.models.InfosystemJson.SystemStatus;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Before;
@@ -18,11 +20,20 @@ import org.mockito.Spy;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.skyscreamer.jsonassert.JSONAssert;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import static java.util.Arrays.stream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.HOURS;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
@@ -35,23 +46,27 @@ public class HarvestServiceTest {
   @Spy @InjectMocks
   private HarvestService service = new HarvestService();
 
+  private Properties producers = new Properties();
+
   @Before
   public void setUp() throws Exception {
-    service.producers = new Properties();
+    service.producerRegistry = new ProducerRegistry(Files.createTempDirectory("producers").resolve("producers.db"));
+    service.approvalStore = new ApprovalStore(Files.createTempDirectory("approvals").resolve("approvals.json"));
+    service.shardStore = new ProducerShardStore(Files.createTempDirectory("producer-shards"));
   }
 
   @Test
   public void addApprovalData() throws Exception {
-    service.producers.setProperty("data-url", "producer");
+    producers.setProperty("http://producer.url/data-url", "producer");
 
-    doNothing().when(service).initProducers();
-    doReturn(true).when(service).validateInfosystem(anyString());
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
     doReturn(new JSONArray("[{\"uri\":\"http://base.url/shortname1\",\"timestamp\":\"2016-01-01T10:00:00\",\"status\":\"MITTE KOOSKÕLASTATUD\"}," +
       "{\"uri\":\"http://base.url/shortname2\",\"timestamp\":\"2015-10-10T01:10:10\",\"status\":\"KOOSKÕLASTATUD\"}]"))
       .when(service).getApprovalData();
 
-    JSONArray infosystemsData = array(json("producer", "http://base.url/shortname1", ""), json("producer", "/70000740/\\u00d5ppurite register", ""));
-    doReturn(infosystemsData).when(service).getData("data-url");
+    doReturn(stream(json("producer", "http://base.url/shortname1", ""), json("producer", "/70000740/\\u00d5ppurite register", "")))
+      .when(service).openData("http://producer.url/data-url");
 
     service.harvestInfosystems();
 
@@ -91,14 +106,14 @@ public class HarvestServiceTest {
 
   @Test
   public void loadDataFromMultipleProducers() throws Exception {
-    service.producers.setProperty("data-url", "producer");
-    service.producers.setProperty("other-url", "other-producer");
+    producers.setProperty("http://producer.url/data-url", "producer");
+    producers.setProperty("http://producer.url/other-url", "other-producer");
 
-    doNothing().when(service).initProducers();
-    doReturn(true).when(service).validateInfosystem(anyString());
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
     doReturn(new JSONArray("[]")).when(service).getApprovalData();
-    doReturn(array(json("producer","http://base.url/shortname1", ""))).when(service).getData("data-url");
-    doReturn(array(json("other-producer","http://base.url/shortname2", ""))).when(service).getData("other-url");
+    doReturn(stream(json("producer","http://base.url/shortname1", ""))).when(service).openData("http://producer.url/data-url");
+    doReturn(stream(json("other-producer","http://base.url/shortname2", ""))).when(service).openData("http://producer.url/other-url");
 
     service.harvestInfosystems();
 
@@ -108,23 +123,91 @@ public class HarvestServiceTest {
     assertEquals(2, infosystems.size());
     JSONAssert.assertEquals(json("producer","http://base.url/shortname1", ""), infosystems.get(0).getJson().toString(), true);
     JSONAssert.assertEquals(json("other-producer","http://base.url/shortname2", ""), infosystems.get(1).getJson().toString(), true);
-    verify(service).getData("data-url");
-    verify(service).getData("other-url");
+    verify(service).openData("http://producer.url/data-url");
+    verify(service).openData("http://producer.url/other-url");
+  }
+
+  @Test
+  public void convertsLargeProducerInParallelKeepingOrder() throws Exception {
+    producers.setProperty("http://producer.url/data-url", "producer");
+    service.recordBatchSize = 50;
+    String[] records = new String[200];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = json(i % 10 == 0 ? "other-producer" : "producer", "http://base.url/shortname" + i, "2016-01-01T00:00:00");
+    }
+
+    service.producerRegistry.update(producers);
+    doAnswer(invocation -> !((JsonNode) invocation.getArguments()[0]).path("uri").asText().endsWith("5"))
+      .when(service).validateInfosystem(any(JsonNode.class));
+    doReturn(new JSONArray("[]")).when(service).getApprovalData();
+    doReturn(stream(records)).when(service).openData("http://producer.url/data-url");
+
+    service.harvestInfosystems();
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(storageService).save(captor.capture());
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < records.length; i++) {
+      if (i % 10 != 0 && i % 10 != 5) expected.add("http://base.url/shortname" + i);
+    }
+    assertEquals(expected, ((List<Infosystem>) captor.getValue()).stream().map(Infosystem::getId).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void mergesOnDiskWithSpillRecords() throws Exception {
+    service.spillRecords = 1;
+    service.spillDirectory = Files.createTempDirectory("harvest-spill");
+    producers.setProperty("http://producer.url/data-url", "producer");
+    producers.setProperty("http://producer.url/other-url", "producer");
+
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
+    doReturn(new JSONArray("[{\"uri\":\"http://base.url/shortname2\",\"timestamp\":\"2016-01-01T10:00:00\",\"status\":\"KOOSKÕLASTATUD\"}]"))
+      .when(service).getApprovalData();
+    doReturn(response("[" + json("producer", "http://base.url/shortname1", "2015-01-01T00:00:00") + ","
+      + json("producer", "http://base.url/shortname2", "2016-01-01T00:00:00") + "]", "\"v1\""))
+      .doReturn(ProducerResponse.notModified())
+      .when(service).openData("http://producer.url/data-url");
+    doReturn(stream(json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00")))
+      .when(service).openData("http://producer.url/other-url");
+    List<List<Infosystem>> saved = new ArrayList<>();
+    doAnswer(invocation -> {
+      List<Infosystem> infosystems = new ArrayList<>();
+      ((Iterable<Infosystem>) invocation.getArguments()[0]).forEach(infosystems::add);
+      return saved.add(infosystems);
+    }).when(storageService).saveStreaming(any());
+
+    service.harvestInfosystems();
+    service.harvestInfosystems();
+
+    verify(storageService, never()).save(any());
+    assertEquals(2, saved.size());
+    for (List<Infosystem> infosystems : saved) {
+      assertEquals(2, infosystems.size());
+      JSONAssert.assertEquals(
+        json("producer", "http://base.url/shortname2", "2016-01-01T00:00:00", "KOOSKÕLASTATUD", "2016-01-01T10:00:00", null),
+        infosystems.get(0).getJson().toString(), true);
+      JSONAssert.assertEquals(json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00"),
+        infosystems.get(1).getJson().toString(), true);
+    }
+    try (Stream<Path> merges = Files.list(service.spillDirectory)) {
+      assertEquals(1, merges.count());
+    }
   }
 
   @Test
   public void loadDataFromMultipleProducers_takesMostRecentInfosystemData() throws Exception {
-    service.producers.setProperty("data-url", "producer");
-    service.producers.setProperty("other-url", "other-producer");
+    producers.setProperty("http://producer.url/data-url", "producer");
+    producers.setProperty("http://producer.url/other-url", "other-producer");
 
-    doNothing().when(service).initProducers();
-    doReturn(true).when(service).validateInfosystem(anyString());
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
     doReturn(new JSONArray("[]")).when(service).getApprovalData();
     String expectedResult = json("producer", "http://base.url/shortname1", "2016-09-05T00:36:26.255215");
-    doReturn(array(json("producer", "http://base.url/shortname1", "2015-09-05T00:36:26.255215"), expectedResult))
-      .when(service).getData("data-url");
-    doReturn(array(json("other-producer","http://base.url/shortname1","2011-09-05T00:36:26.255215")))
-      .when(service).getData("other-url");
+    doReturn(stream(json("producer", "http://base.url/shortname1", "2015-09-05T00:36:26.255215"), expectedResult))
+      .when(service).openData("http://producer.url/data-url");
+    doReturn(stream(json("other-producer","http://base.url/shortname1","2011-09-05T00:36:26.255215")))
+      .when(service).openData("http://producer.url/other-url");
 
     service.harvestInfosystems();
 
@@ -133,19 +216,19 @@ public class HarvestServiceTest {
     List<Infosystem> infosystems = captor.getValue();
     assertEquals(1, infosystems.size());
     JSONAssert.assertEquals(expectedResult, infosystems.get(0).getJson().toString(), true);
-    verify(service).getData("data-url");
-    verify(service).getData("other-url");
+    verify(service).openData("http://producer.url/data-url");
+    verify(service).openData("http://producer.url/other-url");
   }
 
   @Test
   public void loadDataFromMultipleProducers_takesOnlyOneInfosystemIfTwoAreEquallyRecent() throws Exception {
-    service.producers.setProperty("data-url", "producer");
+    producers.setProperty("http://producer.url/data-url", "producer");
 
-    doNothing().when(service).initProducers();
-    doReturn(true).when(service).validateInfosystem(anyString());
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
     doReturn(new JSONArray("[]")).when(service).getApprovalData();
-    doReturn(array(json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00"), json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00")))
-      .when(service).getData("data-url");
+    doReturn(stream(json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00"), json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00")))
+      .when(service).openData("http://producer.url/data-url");
 
     service.harvestInfosystems();
 
@@ -161,15 +244,15 @@ public class HarvestServiceTest {
   @Test
   public void loadDataFromLegacyProducerAllowingAnyOwner() throws Exception {
     service.legacyProducerUrl = "legacy-data-url";
-    service.producers.setProperty("data-url", "producer,producer3");
+    producers.setProperty("http://producer.url/data-url", "producer,producer3");
 
-    doNothing().when(service).initProducers();
-    doReturn(true).when(service).validateInfosystem(anyString());
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
     doReturn(new JSONArray("[]")).when(service).getApprovalData();
-    doReturn(array(json("producer2", "http://base.url/shortname2", "2016-01-01T00:00:00"), json("producer3", "http://base.url/shortname3", "2016-01-01T00:00:00")))
-      .when(service).getData("data-url");
-    doReturn(array(json("producer1", "http://base.url/shortname1", "2016-01-01T00:00:00"), json("producer2", "http://base.url/shortname2", "2016-01-01T00:00:00")))
-      .when(service).getData("legacy-data-url");
+    doReturn(stream(json("producer2", "http://base.url/shortname2", "2016-01-01T00:00:00"), json("producer3", "http://base.url/shortname3", "2016-01-01T00:00:00")))
+      .when(service).openData("http://producer.url/data-url");
+    doReturn(stream(json("producer1", "http://base.url/shortname1", "2016-01-01T00:00:00"), json("producer2", "http://base.url/shortname2", "2016-01-01T00:00:00")))
+      .when(service).openData("legacy-data-url");
 
     service.harvestInfosystems();
 
@@ -195,25 +278,80 @@ public class HarvestServiceTest {
 
   @Test
   public void doesNotHarvestInfosystemsIfApprovalsRequestThrowsException() throws Exception {
-    doThrow(mock(HarvestService.UnreachableResourceException.class)).when(service).getApprovalData();
+    doThrow(new HarvestService.UnreachableResourceException(new IOException())).when(service).getApprovalData();
 
     service.harvestInfosystems();
 
     verify(storageService, never()).save(any());
   }
 
+  @Test
+  public void harvestsWithLastKnownApprovalsIfApprovalsRequestThrowsException() throws Exception {
+    producers.setProperty("http://producer.url/data-url", "producer");
+
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
+    doReturn(new JSONArray("[{\"uri\":\"http://base.url/shortname1\",\"timestamp\":\"2016-01-01T10:00:00\",\"status\":\"KOOSKÕLASTATUD\"}]"))
+      .doThrow(new HarvestService.UnreachableResourceException(new IOException()))
+      .when(service).getApprovalData();
+    doReturn(stream(json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00")))
+      .doReturn(stream(json("producer", "http://base.url/shortname1", "2016-02-02T00:00:00")))
+      .when(service).openData("http://producer.url/data-url");
+
+    service.harvestInfosystems();
+    service.harvestInfosystems();
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(storageService, times(2)).save(captor.capture());
+    JSONAssert.assertEquals(
+      json("producer", "http://base.url/shortname1", "2016-02-02T00:00:00", "KOOSKÕLASTATUD", "2016-01-01T10:00:00", null),
+      ((List<Infosystem>) captor.getAllValues().get(1)).get(0).getJson().toString(), true);
+  }
+
+  @Test
+  public void refreshApprovalsRepublishesWithoutHarvestingProducers() throws Exception {
+    producers.setProperty("http://producer.url/data-url", "producer");
+
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
+    doReturn(new JSONArray("[]"))
+      .doReturn(new JSONArray("[{\"uri\":\"http://base.url/shortname1\",\"timestamp\":\"2016-01-01T10:00:00\",\"status\":\"KOOSKÕLASTATUD\"}]"))
+      .when(service).getApprovalData();
+    doReturn(stream(json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00"))).when(service).openData("http://producer.url/data-url");
+
+    service.harvestInfosystems();
+    service.refreshApprovals();
+    service.refreshApprovals();
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(storageService, times(2)).save(captor.capture());
+    verify(service, times(1)).openData("http://producer.url/data-url");
+    JSONAssert.assertEquals(
+      json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00", "KOOSKÕLASTATUD", "2016-01-01T10:00:00", null),
+      ((List<Infosystem>) captor.getAllValues().get(1)).get(0).getJson().toString(), true);
+  }
+
+  @Test
+  public void refreshApprovalsBeforeFirstHarvestDoesNotPublish() throws Exception {
+    doReturn(new JSONArray("[]")).when(service).getApprovalData();
+
+    service.refreshApprovals();
+
+    verify(storageService, never()).save(any());
+  }
+
   @Test
   public void skipsProducerIfUrlIsUnreachable() throws Exception {
-    service.producers.setProperty("data-url-ok1", "producer1");
-    service.producers.setProperty("data-url-fail", "producer2");
-    service.producers.setProperty("data-url-ok2", "producer3");
+    producers.setProperty("http://producer.url/data-url-ok1", "producer1");
+    producers.setProperty("http://producer.url/data-url-fail", "producer2");
+    producers.setProperty("http://producer.url/data-url-ok2", "producer3");
 
-    doNothing().when(service).initProducers();
-    doReturn(true).when(service).validateInfosystem(anyString());
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
     doReturn(new JSONArray("[]")).when(service).getApprovalData();
-    doReturn(array(json("producer1", "http://base.url/shortname1", "2016-01-01T00:00:00"))).when(service).getData("data-url-ok1");
-    doThrow(mock(HarvestService.UnreachableResourceException.class)).when(service).getData("data-url-fail");
-    doReturn(array(json("producer3", "http://base.url/shortname3", "2016-01-01T00:00:00"))).when(service).getData("data-url-ok2");
+    doReturn(stream(json("producer1", "http://base.url/shortname1", "2016-01-01T00:00:00"))).when(service).openData("http://producer.url/data-url-ok1");
+    doThrow(mock(HarvestService.UnreachableResourceException.class)).when(service).openData("http://producer.url/data-url-fail");
+    doReturn(stream(json("producer3", "http://base.url/shortname3", "2016-01-01T00:00:00"))).when(service).openData("http://producer.url/data-url-ok2");
 
     service.harvestInfosystems();
 
@@ -229,8 +367,277 @@ public class HarvestServiceTest {
       infosystems.get(1).getJson().toString(), true);
   }
 
-  private JSONArray array(String... objects) {
-    return new JSONArray("[" + stream(objects).collect(Collectors.joining(",")) + "]");
+  @Test
+  public void reusesLastResultOfProducerThatIsNotDue() throws Exception {
+    producers.setProperty("http://producer.url/data-url", "producer;interval=3600;jitter=60");
+
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
+    doReturn(new JSONArray("[]")).when(service).getApprovalData();
+    doReturn(stream(json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00"))).when(service).openData("http://producer.url/data-url");
+
+    service.harvestInfosystems();
+    service.harvestInfosystems();
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(storageService, times(2)).save(captor.capture());
+    verify(service, times(1)).openData("http://producer.url/data-url");
+    assertEquals(1, ((List<Infosystem>) captor.getAllValues().get(1)).size());
+  }
+
+  @Test
+  public void backsOffFromFailingProducer() throws Exception {
+    producers.setProperty("http://producer.url/data-url-ok", "producer1");
+    producers.setProperty("http://producer.url/data-url-fail", "producer2");
+
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
+    doReturn(new JSONArray("[]")).when(service).getApprovalData();
+    doAnswer(invocation -> stream(json("producer1", "http://base.url/shortname1", "2016-01-01T00:00:00"))).when(service).openData("http://producer.url/data-url-ok");
+    doThrow(new HarvestService.UnreachableResourceException(new IOException())).when(service).openData("http://producer.url/data-url-fail");
+
+    service.harvestInfosystems();
+    service.harvestInfosystems();
+
+    verify(service, times(2)).openData("http://producer.url/data-url-ok");
+    verify(service, times(1)).openData("http://producer.url/data-url-fail");
+    assertEquals(ProducerSchedule.State.BACKOFF, service.schedules.get("http://producer.url/data-url-fail").getState());
+  }
+
+  @Test
+  public void publishesLastGoodInfosystemsOfFailingProducer() throws Exception {
+    producers.setProperty("http://producer.url/data-url", "producer;backoff=0");
+
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
+    doReturn(new JSONArray("[]")).when(service).getApprovalData();
+    doReturn(stream(json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00")))
+      .doThrow(new HarvestService.UnreachableResourceException(new IOException()))
+      .when(service).openData("http://producer.url/data-url");
+
+    service.harvestInfosystems();
+    service.harvestInfosystems();
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(storageService, times(2)).save(captor.capture());
+    verify(service, times(2)).openData("http://producer.url/data-url");
+    assertEquals(1, ((List<Infosystem>) captor.getAllValues().get(1)).size());
+  }
+
+  @Test
+  public void leavesOutLastGoodInfosystemsOlderThanRetention() throws Exception {
+    producers.setProperty("http://producer.url/data-url", "producer");
+
+    service.producerRegistry.update(producers);
+    service.shardStore.put("http://producer.url/data-url",
+      singletonList(new Infosystem(new JSONObject(json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00")))),
+      System.currentTimeMillis() - HOURS.toMillis(service.lastKnownGoodHours + 1));
+    doReturn(new JSONArray("[]")).when(service).getApprovalData();
+    doThrow(new HarvestService.UnreachableResourceException(new IOException())).when(service).openData("http://producer.url/data-url");
+
+    service.harvestInfosystems();
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(storageService).save(captor.capture());
+    assertTrue(captor.getValue().isEmpty());
+  }
+
+  @Test
+  public void skipsHarvestWhilePreviousHarvestIsRunning() throws Exception {
+    producers.setProperty("http://producer.url/data-url", "producer");
+
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
+    doReturn(new JSONArray("[]")).when(service).getApprovalData();
+    doAnswer(invocation -> {
+      Thread concurrentHarvest = new Thread(service::harvestInfosystems);
+      concurrentHarvest.start();
+      concurrentHarvest.join();
+      return stream(json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00"));
+    }).when(service).openData("http://producer.url/data-url");
+
+    service.harvestInfosystems();
+
+    verify(service, times(1)).openData("http://producer.url/data-url");
+    verify(storageService, times(1)).save(any());
+  }
+
+  @Test
+  public void skipsProducerIfResponseIsTruncated() throws Exception {
+    producers.setProperty("http://producer.url/data-url-ok", "producer1");
+    producers.setProperty("http://producer.url/data-url-truncated", "producer2");
+
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
+    doReturn(new JSONArray("[]")).when(service).getApprovalData();
+    doReturn(stream(json("producer1", "http://base.url/shortname1", "2016-01-01T00:00:00"))).when(service).openData("http://producer.url/data-url-ok");
+    doReturn(response("[" + json("producer2", "http://base.url/shortname2", "2016-01-01T00:00:00") + ",{\"uri\":", null))
+      .when(service).openData("http://producer.url/data-url-truncated");
+
+    service.harvestInfosystems();
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(storageService).save(captor.capture());
+    List<Infosystem> infosystems = captor.getValue();
+    assertEquals(1, infosystems.size());
+    assertEquals("http://base.url/shortname1", infosystems.get(0).getId());
+  }
+
+  @Test
+  public void reusesInfosystemsOfNotModifiedProducer() throws Exception {
+    producers.setProperty("http://producer.url/data-url", "producer");
+
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
+    doReturn(new JSONArray("[]")).when(service).getApprovalData();
+    doReturn(response("[" + json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00") + "]", "\"v1\""))
+      .doReturn(ProducerResponse.notModified())
+      .when(service).openData("http://producer.url/data-url");
+
+    service.harvestInfosystems();
+    service.harvestInfosystems();
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(storageService, times(2)).save(captor.capture());
+    List<Infosystem> infosystems = captor.getAllValues().get(1);
+    assertEquals(1, infosystems.size());
+    JSONAssert.assertEquals(
+      json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00"),
+      infosystems.get(0).getJson().toString(), true);
+    verify(service, times(1)).validateInfosystem(any(JsonNode.class));
+  }
+
+  @Test
+  public void doesNotKeepApprovalsOnReusedInfosystems() throws Exception {
+    producers.setProperty("http://producer.url/data-url", "producer");
+
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
+    doReturn(new JSONArray("[{\"uri\":\"http://base.url/shortname1\",\"timestamp\":\"2016-01-01T10:00:00\",\"status\":\"KOOSKÕLASTATUD\"}]"))
+      .doReturn(new JSONArray("[]"))
+      .when(service).getApprovalData();
+    doReturn(response("[" + json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00") + "]", "\"v1\""))
+      .doReturn(ProducerResponse.notModified())
+      .when(service).openData("http://producer.url/data-url");
+
+    service.harvestInfosystems();
+    service.harvestInfosystems();
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(storageService, times(2)).save(captor.capture());
+    JSONAssert.assertEquals(
+      json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00", "KOOSKÕLASTATUD", "2016-01-01T10:00:00", null),
+      ((List<Infosystem>) captor.getAllValues().get(0)).get(0).getJson().toString(), true);
+    JSONAssert.assertEquals(
+      json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00"),
+      ((List<Infosystem>) captor.getAllValues().get(1)).get(0).getJson().toString(), true);
+  }
+
+  @Test
+  public void incrementalHarvestSkipsUnchangedInfosystems() throws Exception {
+    service.incremental = true;
+    service.harvestIndex = new HarvestIndex(Files.createTempFile("harvest-index", ".json"));
+    producers.setProperty("http://producer.url/data-url", "producer");
+
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
+    doReturn(new JSONArray("[{\"uri\":\"http://base.url/shortname1\",\"timestamp\":\"2016-01-01T10:00:00\",\"status\":\"KOOSKÕLASTATUD\"}]"))
+      .when(service).getApprovalData();
+    String unchanged = json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00");
+    doReturn(stream(unchanged, json("producer", "http://base.url/shortname2", "2016-01-01T00:00:00")))
+      .doReturn(stream(unchanged, json("producer", "http://base.url/shortname2", "2016-02-02T00:00:00")))
+      .when(service).openData("http://producer.url/data-url");
+
+    service.harvestInfosystems();
+    service.harvestInfosystems();
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(storageService, times(2)).save(captor.capture());
+    List<Infosystem> first = captor.getAllValues().get(0);
+    List<Infosystem> second = captor.getAllValues().get(1);
+    assertSame(first.get(0), second.get(0));
+    assertNotSame(first.get(1), second.get(1));
+    JSONAssert.assertEquals(
+      json("producer", "http://base.url/shortname2", "2016-02-02T00:00:00"),
+      second.get(1).getJson().toString(), true);
+    verify(service, times(3)).validateInfosystem(any(JsonNode.class));
+  }
+
+  @Test
+  public void incrementalHarvestSkipsUnchangedInfosystemsWhileMergingOnDisk() throws Exception {
+    service.incremental = true;
+    service.spillRecords = 1;
+    service.spillDirectory = Files.createTempDirectory("harvest-spill");
+    service.harvestIndex = new HarvestIndex(Files.createTempFile("harvest-index", ".json"));
+    producers.setProperty("http://producer.url/data-url", "producer");
+
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
+    doReturn(new JSONArray("[]")).when(service).getApprovalData();
+    String unchanged = json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00");
+    doReturn(stream(unchanged, json("producer", "http://base.url/shortname2", "2016-01-01T00:00:00")))
+      .doReturn(stream(unchanged, json("producer", "http://base.url/shortname2", "2016-02-02T00:00:00")))
+      .when(service).openData("http://producer.url/data-url");
+
+    service.harvestInfosystems();
+    service.harvestInfosystems();
+
+    verify(storageService, times(2)).saveStreaming(any());
+    verify(service, times(3)).validateInfosystem(any(JsonNode.class));
+  }
+
+  @Test
+  public void approvalRefreshDoesNotUpdateHarvestIndex() throws Exception {
+    service.incremental = true;
+    service.harvestIndex = spy(new HarvestIndex(Files.createTempFile("harvest-index", ".json")));
+    producers.setProperty("http://producer.url/data-url", "producer");
+
+    service.producerRegistry.update(producers);
+    doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
+    doReturn(new JSONArray("[]"))
+      .doReturn(new JSONArray("[{\"uri\":\"http://base.url/shortname1\",\"timestamp\":\"2016-01-01T10:00:00\",\"status\":\"KOOSKÕLASTATUD\"}]"))
+      .when(service).getApprovalData();
+    doReturn(stream(json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00")))
+      .when(service).openData("http://producer.url/data-url");
+
+    service.harvestInfosystems();
+    service.refreshApprovals();
+
+    verify(storageService, times(2)).save(any());
+    verify(service.harvestIndex, times(1)).update(any(), any(), any());
+  }
+
+  @Test
+  public void recordsProducerMetrics() throws Exception {
+    producers.setProperty("http://producer.url/data-url", "producer");
+
+    service.producerRegistry.update(producers);
+    doReturn(true).doReturn(false).doReturn(true).when(service).validateInfosystem(any(JsonNode.class));
+    doReturn(new JSONArray("[]")).when(service).getApprovalData();
+    doReturn(stream(json("producer", "http://base.url/shortname1", "2016-01-01T00:00:00"),
+      json("producer", "http://base.url/shortname2", "2016-01-01T00:00:00"),
+      json("other", "http://base.url/shortname3", "2016-01-01T00:00:00")))
+      .when(service).openData("http://producer.url/data-url");
+
+    service.harvestInfosystems();
+
+    MeterRegistry registry = service.meterRegistry;
+    assertEquals(1, registry.find("harvester.producer.records").tags("producer", "http://producer.url/data-url", "outcome", "accepted").counter().count(), 0);
+    assertEquals(1, registry.find("harvester.producer.records").tags("producer", "http://producer.url/data-url", "outcome", "invalid").counter().count(), 0);
+    assertEquals(1, registry.find("harvester.producer.records").tags("producer", "http://producer.url/data-url", "outcome", "not_whitelisted").counter().count(), 0);
+    assertEquals(1, registry.find("harvester.producer.responses").tags("producer", "http://producer.url/data-url", "status", "ok").counter().count(), 0);
+    assertEquals(1, registry.find("harvester.producer.fetch").tags("producer", "http://producer.url/data-url").timer().count());
+    assertEquals(3, registry.find("harvester.producer.validation").tags("producer", "http://producer.url/data-url").timer().count());
+    assertEquals(1, registry.find("harvester.stage").tags("stage", "save").timer().count());
+    assertEquals(1, registry.find("harvester.duration").timer().count());
+  }
+
+  private ProducerResponse stream(String... objects) {
+    return response("[" + Arrays.stream(objects).collect(Collectors.joining(",")) + "]", null);
+  }
+
+  private ProducerResponse response(String body, String etag) {
+    return new ProducerResponse(new ByteArrayInputStream(body.getBytes(UTF_8)), etag, null);
   }
 
   private String json(String ownerCode, String uri, String statusTimestamp) {
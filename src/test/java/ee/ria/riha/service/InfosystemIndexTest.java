@@ -0,0 +1,129 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.models.Infosystem;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.skyscreamer.jsonassert.JSONAssert;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class InfosystemIndexTest {
+
+  private InfosystemIndex index = InfosystemIndex.build(asList(
+    infosystem("uri4", "70000740", "KOOSKÕLASTATUD", "ASUTAMISEL"),
+    infosystem("uri2", "70000740", "MITTE KOOSKÕLASTATUD", "KASUTUSEL"),
+    infosystem("uri1", "70000562", "KOOSKÕLASTATUD", "KASUTUSEL"),
+    infosystem("uri3", "70000740", "KOOSKÕLASTATUD", "KASUTUSEL")));
+
+  @Test
+  public void findsByOwnerOrderedByUri() throws Exception {
+    JSONAssert.assertEquals("{\"infosystems\":[{\"uri\":\"uri2\"},{\"uri\":\"uri3\"},{\"uri\":\"uri4\"}],\"next\":null}",
+      index.query(new InfosystemQuery().setOwner("70000740")), false);
+  }
+
+  @Test
+  public void combinesFilters() throws Exception {
+    JSONAssert.assertEquals("{\"infosystems\":[{\"uri\":\"uri3\"}],\"next\":null}",
+      index.query(new InfosystemQuery().setOwner("70000740").setApprovalStatus("KOOSKÕLASTATUD").setSystemStatus("KASUTUSEL")), false);
+  }
+
+  @Test
+  public void findsByUri() throws Exception {
+    JSONAssert.assertEquals("{\"infosystems\":[{\"uri\":\"uri2\",\"owner\":{\"code\":\"70000740\"}}],\"next\":null}",
+      index.query(new InfosystemQuery().setUri("uri2")), false);
+    JSONAssert.assertEquals("{\"infosystems\":[],\"next\":null}", index.query(new InfosystemQuery().setUri("uri9")), false);
+  }
+
+  @Test
+  public void paginatesWithKeysetCursor() throws Exception {
+    InfosystemQuery query = new InfosystemQuery().setApprovalStatus("KOOSKÕLASTATUD").setLimit(2);
+    JSONAssert.assertEquals("{\"infosystems\":[{\"uri\":\"uri1\"},{\"uri\":\"uri3\"}],\"next\":\"uri3\"}", index.query(query), false);
+    JSONAssert.assertEquals("{\"infosystems\":[{\"uri\":\"uri4\"}],\"next\":null}", index.query(query.setAfter("uri3")), false);
+    JSONAssert.assertEquals("{\"infosystems\":[{\"uri\":\"uri3\"}],\"next\":\"uri3\"}", index.query(query.setAfter("uri10").setLimit(1)), false);
+  }
+
+  @Test
+  public void unknownValueMatchesNothing() throws Exception {
+    JSONAssert.assertEquals("{\"infosystems\":[],\"next\":null}", index.query(new InfosystemQuery().setOwner("1")), false);
+  }
+
+  @Test
+  public void unknownValueDoesNotMatchMissingFieldByUri() throws Exception {
+    InfosystemIndex index = InfosystemIndex.parse("[{\"uri\":\"a\"}]".getBytes(UTF_8));
+
+    JSONAssert.assertEquals("{\"infosystems\":[],\"next\":null}",
+      index.query(new InfosystemQuery().setUri("a").setApprovalStatus("NOPE")), false);
+    JSONAssert.assertEquals("{\"infosystems\":[],\"next\":null}",
+      index.query(new InfosystemQuery().setUri("a").setOwner("1")), false);
+  }
+
+  @Test
+  public void parsesStoredCatalogue() {
+    InfosystemIndex parsed = InfosystemIndex.parse("[{\"uri\":\"uri1\",\"owner\":{\"code\":\"1\"}},{\"name\":\"no uri\"}]".getBytes(UTF_8));
+    assertEquals(1, parsed.size());
+    assertEquals(0, InfosystemIndex.parse("".getBytes(UTF_8)).size());
+  }
+
+  @Test
+  public void mapsWrittenIndexWithCatalogue() throws Exception {
+    List<Infosystem> infosystems = asList(infosystem("uri2", "70000740", "KOOSKÕLASTATUD", "KASUTUSEL"),
+      infosystem("uri1", "70000562", "KOOSKÕLASTATUD", "KASUTUSEL"));
+    Path catalogue = Files.createTempFile("infosystems", ".json");
+    Files.write(catalogue, Infosystem.toJsonArray(infosystems));
+    Path path = write(infosystems, "generation");
+
+    InfosystemIndex mapped = InfosystemIndex.map(path, catalogue);
+
+    assertEquals("generation", mapped.getSource());
+    assertEquals("digest", mapped.getDigest());
+    assertArrayEquals(infosystems.get(1).getJsonBytes(), mapped.json("uri1"));
+    JSONAssert.assertEquals("{\"infosystems\":[{\"uri\":\"uri2\",\"owner\":{\"code\":\"70000740\"}}],\"next\":null}",
+      mapped.query(new InfosystemQuery().setOwner("70000740")), false);
+    assertTrue(Files.size(path) < Files.size(catalogue));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsCatalogueOfAnotherLength() throws Exception {
+    List<Infosystem> infosystems = singletonList(infosystem("uri1", "70000562", "KOOSKÕLASTATUD", "KASUTUSEL"));
+    Path catalogue = Files.createTempFile("infosystems", ".json");
+    Files.write(catalogue, "[]".getBytes(UTF_8));
+
+    InfosystemIndex.map(write(infosystems, "generation"), catalogue);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsOtherFiles() throws Exception {
+    Path path = Files.createTempFile("infosystems", ".index");
+    Files.write(path, "[{\"uri\":\"uri1\"}]".getBytes(UTF_8));
+
+    InfosystemIndex.map(path, path);
+  }
+
+  private static Path write(List<Infosystem> infosystems, String source) throws IOException {
+    InfosystemIndex.Builder builder = new InfosystemIndex.Builder();
+    infosystems.forEach(builder::add);
+    Path path = Files.createTempFile("infosystems", ".index");
+    try (OutputStream out = Files.newOutputStream(path)) {
+      builder.write("digest", source, out);
+    }
+    return path;
+  }
+
+  private static Infosystem infosystem(String uri, String owner, String approvalStatus, String systemStatus) {
+    return new Infosystem(new JSONObject()
+      .put("uri", uri)
+      .put("owner", new JSONObject().put("code", owner))
+      .put("meta", new JSONObject()
+        .put("approval_status", new JSONObject().put("status", approvalStatus))
+        .put("system_status", new JSONObject().put("status", systemStatus))));
+  }
+}
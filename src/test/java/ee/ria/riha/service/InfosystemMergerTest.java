@@ -0,0 +1,84 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.models.Infosystem;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+
+public class InfosystemMergerTest {
+
+  private InfosystemMerger merger = new InfosystemMerger();
+
+  @Test
+  public void keepsMostRecentInfosystem() {
+    merger.add(0, asList(infosystem("uri1", "2015-01-01T00:00:00", "old")));
+    merger.add(1, asList(infosystem("uri1", "2016-01-01T00:00:00", "new")));
+
+    assertEquals(asList("new"), names(merger.result()));
+  }
+
+  @Test
+  public void comparesTimestampsBelowMilliseconds() {
+    merger.add(0, asList(infosystem("uri1", "2016-09-05T00:36:26.255100", "older")));
+    merger.add(1, asList(infosystem("uri1", "2016-09-05T00:36:26.255900", "newer")));
+
+    assertEquals(asList("newer"), names(merger.result()));
+  }
+
+  @Test
+  public void equallyRecentInfosystemsAreResolvedByHarvestOrder() {
+    merger.add(1, asList(infosystem("uri1", "2016-01-01T00:00:00", "second producer")));
+    merger.add(0, asList(infosystem("uri1", "2016-01-01T00:00:00", "first producer")));
+
+    assertEquals(asList("first producer"), names(merger.result()));
+  }
+
+  @Test
+  public void missingTimestampIsOlderThanAnyOther() {
+    merger.add(0, asList(new Infosystem(new JSONObject().put("uri", "uri1").put("name", "no timestamp"))));
+    merger.add(1, asList(infosystem("uri1", "2000-01-01T00:00:00", "timestamp")));
+
+    assertEquals(asList("timestamp"), names(merger.result()));
+  }
+
+  @Test
+  public void resultIsOrderedByHarvestOrderOfWinners() {
+    merger.add(1, asList(infosystem("uri2", "2016-01-01T00:00:00", "b"), infosystem("uri1", "2016-01-01T00:00:00", "c")));
+    merger.add(0, asList(infosystem("uri1", "2015-01-01T00:00:00", "a"), infosystem("uri3", "2015-01-01T00:00:00", "d")));
+
+    assertEquals(asList("d", "b", "c"), names(merger.result()));
+  }
+
+  @Test
+  public void mergesLargeCatalogues() {
+    for (int producer = 0; producer < 10; producer++) {
+      List<Infosystem> infosystems = new ArrayList<>();
+      for (int i = 0; i < 20_000; i++) {
+        infosystems.add(infosystem("uri" + i, "2016-01-01T00:00:0" + producer, "name" + producer));
+      }
+      merger.add(producer, infosystems);
+    }
+
+    List<Infosystem> result = merger.result();
+    assertEquals(20_000, result.size());
+    assertEquals("uri0", result.get(0).getId());
+    assertEquals("name9", result.get(0).getJson().getString("name"));
+  }
+
+  private Infosystem infosystem(String uri, String timestamp, String name) {
+    return new Infosystem(new JSONObject()
+      .put("uri", uri)
+      .put("name", name)
+      .put("meta", new JSONObject().put("system_status", new JSONObject().put("timestamp", timestamp))));
+  }
+
+  private List<String> names(List<Infosystem> infosystems) {
+    return infosystems.stream().map(infosystem -> infosystem.getJson().getString("name")).collect(toList());
+  }
+}
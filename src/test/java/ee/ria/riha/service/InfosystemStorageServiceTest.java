@@ -6,10 +6,27 @@ import org.junit.Before;
 import org.junit.Test;
 import org.skyscreamer.jsonassert.JSONAssert;
 
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
 
 public class InfosystemStorageServiceTest {
 
@@ -40,4 +57,218 @@ public class InfosystemStorageServiceTest {
 
     JSONAssert.assertEquals("[{\"savedJson\":\"false\"}]", new String(Files.readAllBytes(service.filePath)), true);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void save_replacesSnapshot() throws IOException {
+    String etag = service.snapshot().getEtag();
+
+    service.save(singletonList(new Infosystem(new JSONObject("{\"savedJson\":\"false\"}"))));
+
+    assertNotEquals(etag, service.snapshot().getEtag());
+    JSONAssert.assertEquals("[{\"savedJson\":\"false\"}]", new String(service.snapshot().getJson(), UTF_8), true);
+    JSONAssert.assertEquals("[{\"savedJson\":\"false\"}]",
+      new String(StreamUtils.copyToByteArray(new GZIPInputStream(new ByteArrayInputStream(service.snapshot().getGzipped()))), UTF_8), true);
+  }
+
+  @Test
+  public void save_publishesGenerationWithAtomicRename() throws IOException {
+    service.save(singletonList(new Infosystem(new JSONObject("{\"savedJson\":\"false\"}"))));
+
+    try (GenerationFile generation = service.openGeneration()) {
+      service.save(singletonList(new Infosystem(new JSONObject("{\"savedJson\":\"true\"}"))));
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      generation.transferTo(Channels.newChannel(out));
+      JSONAssert.assertEquals("[{\"savedJson\":\"false\"}]", new String(out.toByteArray(), UTF_8), true);
+    }
+    JSONAssert.assertEquals("[{\"savedJson\":\"true\"}]", new String(Files.readAllBytes(service.filePath)), true);
+    try (Stream<Path> files = Files.list(service.filePath.getParent())) {
+      assertFalse(files.anyMatch(path -> path.getFileName().toString().startsWith(service.filePath.getFileName() + ".")
+        && path.getFileName().toString().endsWith(".tmp")));
+    }
+  }
+
+  @Test
+  public void save_skipsUnchangedInfosystems() throws IOException {
+    service.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"uri1\"}"))));
+    long generation = new JSONObject(service.changes(null)).getLong("generation");
+
+    service.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"uri1\"}"))));
+
+    assertEquals(generation, new JSONObject(service.changes(null)).getLong("generation"));
+  }
+
+  @Test
+  public void save_unchangedInfosystemsWriteNoFiles() throws Exception {
+    service.historyGenerations = 2;
+    service.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"uri1\"}"))));
+    Path manifests = service.filePath.resolveSibling(service.filePath.getFileName() + ".history").resolve("generations");
+    List<String> written = new ArrayList<>();
+    Iterable<Infosystem> infosystems = () -> {
+      written.addAll(temporaryFiles(service.filePath.getParent(), service.filePath.getFileName() + ".*.tmp"));
+      written.addAll(temporaryFiles(manifests, "*.tmp"));
+      return singletonList(new Infosystem(new JSONObject("{\"uri\":\"uri1\"}"))).iterator();
+    };
+
+    service.saveStreaming(infosystems);
+
+    assertEquals(emptyList(), written);
+    assertEquals(1, service.archivedGenerations().size());
+  }
+
+  @Test
+  public void save_keepsHistoryOfGenerations() throws Exception {
+    service.historyGenerations = 2;
+    service.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"uri1\"}"))));
+    long first = new JSONObject(service.changes(null)).getLong("generation");
+    service.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"uri2\"}"))));
+    service.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"uri3\"}"))));
+    long last = new JSONObject(service.changes(null)).getLong("generation");
+
+    assertEquals(2, service.archivedGenerations().size());
+    assertEquals(last, (long) service.archivedGenerations().get(1));
+    assertNull(service.archivedGeneration(first));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ArchivedGeneration archived = service.archivedGeneration(last)) {
+      archived.writeTo(out);
+    }
+    JSONAssert.assertEquals("[{\"uri\":\"uri3\"}]", new String(out.toByteArray(), UTF_8), true);
+  }
+
+  @Test
+  public void save_keepsNoHistoryByDefault() throws Exception {
+    service.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"uri1\"}"))));
+
+    assertTrue(service.archivedGenerations().isEmpty());
+    assertFalse(Files.exists(service.filePath.resolveSibling(service.filePath.getFileName() + ".history")));
+  }
+
+  @Test
+  public void projection_computedOncePerGeneration() throws Exception {
+    service.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"uri1\",\"owner\":{\"code\":\"1\"}}"))));
+
+    PublishedSnapshot projection = service.projection("uri");
+    assertEquals("[{\"uri\":\"uri1\"}]", new String(projection.getJson(), UTF_8));
+    assertSame(projection, service.projection(" uri,"));
+
+    service.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"uri2\",\"owner\":{\"code\":\"1\"}}"))));
+
+    assertEquals("[{\"uri\":\"uri2\"}]", new String(service.projection("uri").getJson(), UTF_8));
+    assertSame(service.snapshot(), service.projection(""));
+  }
+
+  @Test
+  public void projection_readsGenerationFileWithZeroCopy() throws Exception {
+    service.zeroCopy = true;
+    service.saveStreaming(singletonList(new Infosystem(new JSONObject("{\"uri\":\"uri1\",\"owner\":{\"code\":\"1\"}}"))));
+
+    assertEquals("[{\"owner\":{\"code\":\"1\"}}]", new String(service.projection("owner.code").getJson(), UTF_8));
+  }
+
+  @Test
+  public void projection_notHarvestedYet() throws Exception {
+    service.filePath.toFile().delete();
+
+    assertEquals("[]", new String(service.projection("uri").getJson(), UTF_8));
+  }
+
+  @Test
+  public void saveStreaming_publishesWithoutEncodingSnapshot() throws Exception {
+    service.saveStreaming(asList(new Infosystem(new JSONObject("{\"uri\":\"uri1\",\"owner\":{\"code\":\"1\"}}")),
+      new Infosystem(new JSONObject("{\"uri\":\"uri2\",\"owner\":{\"code\":\"2\"}}"))));
+
+    String catalogue = "[{\"uri\":\"uri1\",\"owner\":{\"code\":\"1\"}},{\"uri\":\"uri2\",\"owner\":{\"code\":\"2\"}}]";
+    JSONAssert.assertEquals(catalogue, new String(Files.readAllBytes(service.filePath), UTF_8), true);
+    JSONAssert.assertEquals(catalogue, service.load(), true);
+    JSONAssert.assertEquals("{\"infosystems\":[{\"uri\":\"uri2\"}],\"next\":null}",
+      service.query(new InfosystemQuery().setOwner("2")), false);
+    JSONAssert.assertEquals("{\"full\":true,\"updated\":[{\"uri\":\"uri1\"},{\"uri\":\"uri2\"}],\"removed\":[]}",
+      service.changes(null), false);
+  }
+
+  @Test
+  public void startsFromWrittenIndex() throws Exception {
+    service.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"uri1\",\"owner\":{\"code\":\"1\"}}"))));
+
+    InfosystemStorageService restarted = new InfosystemStorageService();
+    restarted.filePath = service.filePath;
+
+    try (GenerationFile generation = restarted.openGeneration()) {
+      assertEquals(service.snapshot().getEtag(), generation.getEtag());
+    }
+    assertEquals(service.snapshot().getEtag(), restarted.snapshot().getEtag());
+    assertArrayEquals(service.snapshot().getGzipped(), restarted.snapshot().getGzipped());
+    JSONAssert.assertEquals("{\"infosystems\":[{\"uri\":\"uri1\",\"owner\":{\"code\":\"1\"}}],\"next\":null}",
+      restarted.query(new InfosystemQuery().setUri("uri1")), true);
+    JSONAssert.assertEquals("{\"infosystems\":[{\"uri\":\"uri1\"}],\"next\":null}",
+      restarted.query(new InfosystemQuery().setOwner("1")), false);
+  }
+
+  @Test
+  public void ignoresIndexOfAnotherGeneration() throws Exception {
+    service.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"uri1\",\"owner\":{\"code\":\"1\"}}"))));
+    Path replaced = Files.createTempFile("", "");
+    Files.write(replaced, "[{\"uri\":\"uri2\",\"owner\":{\"code\":\"1\"}}]".getBytes(UTF_8));
+    Files.move(replaced, service.filePath, StandardCopyOption.REPLACE_EXISTING);
+
+    InfosystemStorageService restarted = new InfosystemStorageService();
+    restarted.filePath = service.filePath;
+
+    JSONAssert.assertEquals("[{\"uri\":\"uri2\",\"owner\":{\"code\":\"1\"}}]", restarted.load(), true);
+    JSONAssert.assertEquals("{\"infosystems\":[{\"uri\":\"uri2\"}],\"next\":null}",
+      restarted.query(new InfosystemQuery().setOwner("1")), false);
+  }
+
+  @Test
+  public void openGeneration_etagIsContentDigest() throws IOException {
+    service.save(singletonList(new Infosystem(new JSONObject("{\"savedJson\":\"aaa\"}"))));
+    String etag = service.snapshot().getEtag();
+    try (GenerationFile generation = service.openGeneration()) {
+      assertEquals(etag, generation.getEtag());
+    }
+
+    service.save(singletonList(new Infosystem(new JSONObject("{\"savedJson\":\"bbb\"}"))));
+
+    try (GenerationFile generation = service.openGeneration()) {
+      assertNotEquals(etag, generation.getEtag());
+      assertEquals(service.snapshot().getEtag(), generation.getEtag());
+    }
+  }
+
+  @Test
+  public void openGeneration_readsDigestOfExistingFile() throws IOException {
+    Files.write(service.filePath, "[{\"savedJson\":\"true\"}]".getBytes(UTF_8));
+
+    try (GenerationFile generation = service.openGeneration()) {
+      assertEquals(PublishedSnapshot.of(Files.readAllBytes(service.filePath)).getEtag(), generation.getEtag());
+    }
+  }
+
+  @Test
+  public void openGeneration_notHarvestedYet() throws IOException {
+    service.filePath.toFile().delete();
+    assertNull(service.openGeneration());
+  }
+
+  @Test
+  public void changes() throws IOException {
+    service.filePath.toFile().delete();
+    service.save(singletonList(new Infosystem(new JSONObject("{\"uri\":\"uri1\"}"))));
+    long generation = new JSONObject(service.changes(null)).getLong("generation");
+
+    service.save(asList(new Infosystem(new JSONObject("{\"uri\":\"uri1\"}")), new Infosystem(new JSONObject("{\"uri\":\"uri2\"}"))));
+
+    JSONAssert.assertEquals("{\"full\":false,\"updated\":[{\"uri\":\"uri2\"}],\"removed\":[]}", service.changes(generation), false);
+  }
+
+  private static List<String> temporaryFiles(Path directory, String glob) {
+    List<String> files = new ArrayList<>();
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, glob)) {
+      for (Path path : paths) files.add(path.getFileName().toString());
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return files;
+  }
+}
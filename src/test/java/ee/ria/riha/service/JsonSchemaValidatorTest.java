@@ -0,0 +1,52 @@
+package ee.ria.riha.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JsonSchemaValidatorTest {
+
+  private ObjectMapper objectMapper = new ObjectMapper();
+  private Path schemaPath;
+  private JsonSchemaValidator validator;
+
+  @Before
+  public void setUp() throws Exception {
+    schemaPath = Files.createTempFile("schema", ".json");
+    validator = new JsonSchemaValidator(schemaPath);
+    validator.reloadCheckIntervalMillis = 0;
+  }
+
+  @Test
+  public void validatesAgainstSchema() throws Exception {
+    Files.write(schemaPath, "{\"type\":\"object\",\"required\":[\"uri\"]}".getBytes());
+
+    assertTrue(validator.isValid(objectMapper.readTree("{\"uri\":\"http://base.url/shortname\"}")));
+    assertFalse(validator.isValid(objectMapper.readTree("{\"name\":\"shortname\"}")));
+  }
+
+  @Test
+  public void reloadsSchemaWhenFileChanges() throws Exception {
+    Files.write(schemaPath, "{\"type\":\"object\",\"required\":[\"uri\"]}".getBytes());
+    assertFalse(validator.isValid(objectMapper.readTree("{\"name\":\"shortname\"}")));
+
+    Files.write(schemaPath, "{\"type\":\"object\",\"required\":[\"name\"]}".getBytes());
+    assertTrue(validator.isValid(objectMapper.readTree("{\"name\":\"shortname\"}")));
+  }
+
+  @Test
+  public void keepsCompiledSchemaUntilReloadCheckIsDue() throws Exception {
+    validator.reloadCheckIntervalMillis = 60_000;
+    Files.write(schemaPath, "{\"type\":\"object\",\"required\":[\"uri\"]}".getBytes());
+    assertFalse(validator.isValid(objectMapper.readTree("{\"name\":\"shortname\"}")));
+
+    Files.write(schemaPath, "{\"type\":\"object\",\"required\":[\"name\"]}".getBytes());
+    assertFalse(validator.isValid(objectMapper.readTree("{\"name\":\"shortname\"}")));
+  }
+}
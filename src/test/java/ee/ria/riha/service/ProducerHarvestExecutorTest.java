@@ -0,0 +1,73 @@
+package ee.ria.riha.service;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProducerHarvestExecutorTest {
+
+  @Test
+  public void fetchesAllProducers() {
+    Map<Integer, String> results = new HashMap<>();
+
+    new ProducerHarvestExecutor(2, 1000, 5000).run(asList("url1", "url2", "url3"), i -> "result" + i, results::put);
+
+    assertEquals(3, results.size());
+    assertEquals("result0", results.get(0));
+    assertEquals("result2", results.get(2));
+  }
+
+  @Test
+  public void skipsProducerThatExceedsItsTimeout() {
+    Map<Integer, String> results = new HashMap<>();
+
+    new ProducerHarvestExecutor(2, 100, 5000).run(asList("fast", "slow"), i -> {
+      if (i == 1) sleep(2000);
+      return "result" + i;
+    }, results::put);
+
+    assertEquals(1, results.size());
+    assertEquals("result0", results.get(0));
+  }
+
+  @Test
+  public void skipsFailingProducer() {
+    Map<Integer, String> results = new HashMap<>();
+
+    new ProducerHarvestExecutor(2, 1000, 5000).run(asList("failing", "ok"), i -> {
+      if (i == 0) throw new IllegalStateException("failed");
+      return "result" + i;
+    }, results::put);
+
+    assertEquals(1, results.size());
+    assertEquals("result1", results.get(1));
+  }
+
+  @Test
+  public void stopsWaitingAtHarvestDeadline() {
+    Map<Integer, String> results = new HashMap<>();
+    long start = System.currentTimeMillis();
+
+    new ProducerHarvestExecutor(1, 5000, 200).run(asList("slow1", "slow2"), i -> {
+      sleep(1000);
+      return "result" + i;
+    }, results::put);
+
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertTrue(results.isEmpty());
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package ee.ria.riha.service;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+public class ProducerHttpClientTest {
+
+  private HttpServer server;
+  private ProducerHttpClient client = new ProducerHttpClient(4, 2, 1000, 1000, 60_000, 100);
+  private Set<Integer> clientPorts = new HashSet<>();
+  private String acceptEncoding;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/small", exchange -> {
+      clientPorts.add(exchange.getRemoteAddress().getPort());
+      acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+      byte[] body = gzip("[{\"uri\":\"uri1\"}]");
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.createContext("/large", exchange -> {
+      byte[] body = gzip(new String(new char[1000]).replace('\0', ' '));
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    server.stop(0);
+  }
+
+  @Test
+  public void decodesGzippedBody() throws Exception {
+    try (CloseableHttpResponse response = client.execute(new HttpGet(url("/small")))) {
+      assertEquals("[{\"uri\":\"uri1\"}]", StreamUtils.copyToString(client.body(response), UTF_8));
+    }
+    assertEquals("gzip,deflate", acceptEncoding);
+  }
+
+  @Test
+  public void reusesConnections() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      try (CloseableHttpResponse response = client.execute(new HttpGet(url("/small")))) {
+        EntityUtils.consume(response.getEntity());
+      }
+    }
+    assertEquals(1, clientPorts.size());
+  }
+
+  @Test(expected = IOException.class)
+  public void failsOnBodyLargerThanMaximum() throws Exception {
+    try (CloseableHttpResponse response = client.execute(new HttpGet(url("/large")));
+         InputStream body = client.body(response)) {
+      StreamUtils.copyToByteArray(body);
+    }
+  }
+
+  private String url(String path) {
+    return "http://localhost:" + server.getAddress().getPort() + path;
+  }
+
+  private static byte[] gzip(String content) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+      gzip.write(content.getBytes(UTF_8));
+    }
+    return bytes.toByteArray();
+  }
+}
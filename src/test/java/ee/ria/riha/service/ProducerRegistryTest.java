@@ -0,0 +1,80 @@
+package ee.ria.riha.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.*;
+
+public class ProducerRegistryTest {
+
+  private Path path;
+  private ProducerRegistry registry;
+
+  @Before
+  public void setUp() throws Exception {
+    path = Files.createTempDirectory("producers").resolve("producers.db");
+    registry = new ProducerRegistry(path);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    registry.close();
+  }
+
+  @Test
+  public void parsesEntriesInFileOrder() throws Exception {
+    write("# comment",
+      "https\\://second.url/systems.json=70000562, 70000740;interval=3600",
+      "https\\://first.url/systems.json=70000342");
+
+    List<ProducerRegistry.Producer> producers = registry.current();
+
+    assertEquals(asList("https://second.url/systems.json", "https://first.url/systems.json"), urls(producers));
+    assertTrue(producers.get(0).owners.contains("70000740"));
+    assertFalse(producers.get(0).owners.contains("70000342"));
+    assertEquals(3_600_000, producers.get(0).settings(new ProducerSchedule.Settings(0, 0, 0, 0, 0, 0)).intervalMillis);
+  }
+
+  @Test
+  public void skipsInvalidEntries() throws Exception {
+    write("ftp\\://producer.url/systems.json=70000562",
+      "https\\://no-owners.url/systems.json=",
+      "https\\://bad-option.url/systems.json=70000562;interval=often",
+      "https\\://valid.url/systems.json=70000562");
+
+    assertEquals(asList("https://valid.url/systems.json"), urls(registry.current()));
+  }
+
+  @Test
+  public void missingFileHasNoProducers() {
+    assertTrue(registry.current().isEmpty());
+  }
+
+  @Test
+  public void reloadsChangedFile() throws Exception {
+    write("https\\://first.url/systems.json=70000342");
+    assertEquals(1, registry.current().size());
+
+    write("https\\://first.url/systems.json=70000342", "https\\://second.url/systems.json=70000562");
+
+    long deadline = System.currentTimeMillis() + 15_000;
+    while (registry.current().size() != 2 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+    assertEquals(asList("https://first.url/systems.json", "https://second.url/systems.json"), urls(registry.current()));
+  }
+
+  private void write(String... lines) throws Exception {
+    Files.write(path, String.join("\n", lines).getBytes(UTF_8));
+  }
+
+  private static List<String> urls(List<ProducerRegistry.Producer> producers) {
+    return producers.stream().map(producer -> producer.url).collect(toList());
+  }
+}
@@ -0,0 +1,79 @@
+package ee.ria.riha.service;
+
+import org.junit.Test;
+
+import static ee.ria.riha.service.ProducerSchedule.State.*;
+import static org.junit.Assert.*;
+
+public class ProducerScheduleTest {
+
+  private ProducerSchedule.Settings settings = new ProducerSchedule.Settings(60_000, 0, 60_000, 300_000, 4, 1_800_000);
+
+  @Test
+  public void dueImmediatelyAndAfterInterval() {
+    ProducerSchedule schedule = new ProducerSchedule(settings);
+    assertTrue(schedule.isDue(0));
+
+    schedule.succeeded(0);
+
+    assertFalse(schedule.isDue(30_000));
+    assertTrue(schedule.isDue(60_000 - ProducerSchedule.DUE_TOLERANCE_MILLIS));
+    assertEquals(CLOSED, schedule.getState());
+  }
+
+  @Test
+  public void backsOffExponentiallyUpToMaximum() {
+    ProducerSchedule schedule = new ProducerSchedule(settings);
+
+    schedule.failed(0);
+    assertEquals(BACKOFF, schedule.getState());
+    assertFalse(schedule.isDue(58_000));
+    assertTrue(schedule.isDue(60_000));
+
+    schedule.failed(60_000);
+    assertFalse(schedule.isDue(60_000 + 118_000));
+    assertTrue(schedule.isDue(60_000 + 120_000));
+
+    schedule.failed(180_000);
+    assertFalse(schedule.isDue(180_000 + 238_000));
+    assertTrue(schedule.isDue(180_000 + 240_000));
+  }
+
+  @Test
+  public void opensCircuitAfterConsecutiveFailuresAndClosesOnSuccess() {
+    ProducerSchedule schedule = new ProducerSchedule(settings);
+    for (int i = 0; i < 4; i++) schedule.failed(0);
+
+    assertEquals(OPEN, schedule.getState());
+    assertFalse(schedule.isDue(1_700_000));
+    assertTrue(schedule.isDue(1_800_000));
+
+    schedule.succeeded(1_800_000);
+    assertEquals(CLOSED, schedule.getState());
+    assertEquals(0, schedule.getFailures());
+  }
+
+  @Test
+  public void jitterDelaysNextAttemptWithinBounds() {
+    ProducerSchedule schedule = new ProducerSchedule(settings.with("jitter", "10"));
+
+    schedule.succeeded(0);
+
+    assertFalse(schedule.isDue(60_000 - ProducerSchedule.DUE_TOLERANCE_MILLIS - 1));
+    assertTrue(schedule.isDue(70_000));
+  }
+
+  @Test
+  public void appliesProducerOptions() {
+    ProducerSchedule.Settings configured = settings.with("interval", "300").with("circuitBreakerFailures", " 2");
+
+    assertEquals(300_000, configured.intervalMillis);
+    assertEquals(2, configured.circuitBreakerFailures);
+    assertEquals(60_000, configured.backoffMillis);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsUnknownOption() {
+    settings.with("priority", "1");
+  }
+}
@@ -0,0 +1,96 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.models.Infosystem;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class ProducerShardStoreTest {
+
+  private Path directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("producer-shards");
+  }
+
+  @Test
+  public void unknownUntilFirstHarvest() {
+    ProducerShardStore store = new ProducerShardStore(directory);
+
+    assertNull(store.get("http://producer.url/a"));
+    assertEquals(0, store.lastSucceeded("http://producer.url/a"));
+  }
+
+  @Test
+  public void writesOnlyChangedShards() {
+    ProducerShardStore store = new ProducerShardStore(directory);
+
+    assertTrue(store.put("http://producer.url/a", infosystems("uri1"), 1000));
+    assertTrue(store.put("http://producer.url/b", infosystems("uri2"), 1000));
+    assertFalse(store.put("http://producer.url/a", infosystems("uri1"), 2000));
+    assertTrue(store.put("http://producer.url/b", infosystems("uri3"), 2000));
+
+    assertEquals(2000, store.lastSucceeded("http://producer.url/a"));
+    assertEquals("uri3", store.get("http://producer.url/b").get(0).getId());
+  }
+
+  @Test
+  public void keepsShardsOverRestart() {
+    new ProducerShardStore(directory).put("http://producer.url/a", infosystems("uri1"), 5000);
+
+    ProducerShardStore store = new ProducerShardStore(directory);
+
+    assertEquals("uri1", store.get("http://producer.url/a").get(0).getId());
+    assertEquals(5000, store.lastSucceeded("http://producer.url/a"));
+    assertFalse(store.put("http://producer.url/a", infosystems("uri1"), 6000));
+  }
+
+  @Test
+  public void readsShardsFromFilesWithoutCaching() {
+    ProducerShardStore store = new ProducerShardStore(directory);
+    store.setCaching(false);
+
+    assertTrue(store.put("http://producer.url/a", infosystems("uri1"), 1000));
+    List<Infosystem> first = store.get("http://producer.url/a");
+
+    assertFalse(store.put("http://producer.url/a", infosystems("uri1"), 2000));
+    assertEquals(2000, store.lastSucceeded("http://producer.url/a"));
+    assertEquals("uri1", store.get("http://producer.url/a").get(0).getId());
+    assertNotSame(first, store.get("http://producer.url/a"));
+  }
+
+  @Test
+  public void removesShardsOfRetiredProducers() throws IOException {
+    ProducerShardStore store = new ProducerShardStore(directory);
+    store.put("http://producer.url/a", infosystems("uri1"), 1000);
+    store.put("http://producer.url/b", infosystems("uri2"), 1000);
+
+    store.retain(singletonList("http://producer.url/a"));
+
+    assertNull(store.get("http://producer.url/b"));
+    assertNull(new ProducerShardStore(directory).get("http://producer.url/b"));
+    assertNotNull(new ProducerShardStore(directory).get("http://producer.url/a"));
+    try (Stream<Path> files = Files.list(directory)) {
+      assertEquals(1, files.count());
+    }
+  }
+
+  @Test
+  public void retainWithoutShards() {
+    new ProducerShardStore(directory.resolve("missing")).retain(singletonList("http://producer.url/a"));
+  }
+
+  private static List<Infosystem> infosystems(String uri) {
+    return singletonList(new Infosystem(new JSONObject().put("uri", uri)));
+  }
+}
@@ -0,0 +1,99 @@
+package ee.ria.riha.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class ProjectionCacheTest {
+
+  private final PublishedSnapshot projection = PublishedSnapshot.of("[]".getBytes(UTF_8));
+  private final PublishedSnapshot other = PublishedSnapshot.of("[{}]".getBytes(UTF_8));
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    ProjectionCache cache = new ProjectionCache(2);
+    cache.get("uri", 1, () -> projection);
+    cache.get("owner.code", 1, () -> projection);
+    cache.get("uri", 1, () -> other);
+    cache.get("meta", 1, () -> projection);
+
+    assertEquals(2, cache.size());
+    assertSame(projection, cache.get("uri", 1, () -> other));
+    assertSame(other, cache.get("owner.code", 1, () -> other));
+  }
+
+  @Test
+  public void returnsProjectionsOfTheVersionOnly() {
+    ProjectionCache cache = new ProjectionCache(2);
+    cache.get("uri", 2, () -> projection);
+
+    assertSame(other, cache.get("uri", 1, () -> other));
+    assertSame(projection, cache.get("uri", 2, () -> other));
+    assertSame(other, cache.get("uri", 3, () -> other));
+    assertSame(other, cache.get("uri", 3, () -> projection));
+  }
+
+  @Test
+  public void keepsNothingWithoutSize() {
+    ProjectionCache cache = new ProjectionCache(0);
+    cache.get("uri", 1, () -> projection);
+
+    assertSame(other, cache.get("uri", 1, () -> other));
+  }
+
+  @Test
+  public void computesMissingProjectionOnceForConcurrentRequests() throws Exception {
+    ProjectionCache cache = new ProjectionCache(2);
+    AtomicInteger computed = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<PublishedSnapshot>> results = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        results.add(executor.submit(() -> cache.get("uri", 1, () -> {
+          computed.incrementAndGet();
+          try {
+            release.await();
+          }
+          catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+          }
+          return projection;
+        })));
+      }
+      Thread.sleep(200);
+      release.countDown();
+      for (Future<PublishedSnapshot> result : results) assertSame(projection, result.get(5, TimeUnit.SECONDS));
+    }
+    finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, computed.get());
+  }
+
+  @Test
+  public void failedProjectionIsComputedAgain() {
+    ProjectionCache cache = new ProjectionCache(2);
+    try {
+      cache.get("uri", 1, () -> {
+        throw new IllegalArgumentException("Expected json array");
+      });
+      fail("Expected the failure to be rethrown");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    assertSame(projection, cache.get("uri", 1, () -> projection));
+  }
+}
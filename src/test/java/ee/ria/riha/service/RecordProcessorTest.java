@@ -0,0 +1,56 @@
+package ee.ria.riha.service;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecordProcessorTest {
+
+  @Test
+  public void keepsOrderOfRecords() {
+    List<Integer> records = IntStream.range(0, 1000).boxed().collect(toList());
+
+    List<String> results = new RecordProcessor(new ForkJoinPool(4), 8).process(records, record -> "record" + record);
+
+    assertEquals(records.stream().map(record -> "record" + record).collect(toList()), results);
+  }
+
+  @Test
+  public void splitsRecordsAcrossWorkers() {
+    Set<String> threads = ConcurrentHashMap.newKeySet();
+    List<Integer> records = IntStream.range(0, 64).boxed().collect(toList());
+
+    new RecordProcessor(new ForkJoinPool(4), 1).process(records, record -> {
+      threads.add(Thread.currentThread().getName());
+      sleep();
+      return record;
+    });
+
+    assertTrue(threads.size() > 1);
+  }
+
+  @Test
+  public void processesSmallBatchOnCallingThread() {
+    List<String> results = new RecordProcessor(new ForkJoinPool(4), 8).process(asList(1, 2), record -> Thread.currentThread().getName());
+
+    assertEquals(asList(Thread.currentThread().getName(), Thread.currentThread().getName()), results);
+  }
+
+  private static void sleep() {
+    try {
+      Thread.sleep(5);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
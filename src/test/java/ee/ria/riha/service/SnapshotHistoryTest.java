@@ -0,0 +1,178 @@
+package ee.ria.riha.service;
+
+import ee.ria.riha.models.Infosystem;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.skyscreamer.jsonassert.JSONAssert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static org.junit.Assert.*;
+
+public class SnapshotHistoryTest {
+
+  private Path directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("history");
+  }
+
+  @Test
+  public void readsGenerationsBack() throws Exception {
+    SnapshotHistory history = new SnapshotHistory(directory, 10, 0);
+    write(history, 1000, infosystem("uri1", "a"), infosystem("uri2", "a"));
+    write(history, 2000, infosystem("uri1", "b"));
+
+    assertEquals(asList(1000L, 2000L), history.generations());
+    ArchivedGeneration first = history.get(1000);
+    String json = json(first);
+    JSONAssert.assertEquals("[{\"uri\":\"uri1\",\"name\":\"a\"},{\"uri\":\"uri2\",\"name\":\"a\"}]", json, true);
+    assertEquals(json.getBytes(UTF_8).length, first.getSize());
+    JSONAssert.assertEquals("[{\"uri\":\"uri1\",\"name\":\"b\"}]", json(history.get(2000)), true);
+    assertNotEquals(first.getEtag(), history.get(2000).getEtag());
+    assertNull(history.get(3000));
+  }
+
+  @Test
+  public void storesIdenticalDocumentsOnce() throws Exception {
+    SnapshotHistory history = new SnapshotHistory(directory, 10, 0);
+    write(history, 1000, infosystem("uri1", "a"), infosystem("uri2", "a"));
+    write(history, 2000, infosystem("uri1", "a"), infosystem("uri2", "b"));
+
+    assertEquals(3, objects());
+  }
+
+  @Test
+  public void emptyGeneration() throws Exception {
+    SnapshotHistory history = new SnapshotHistory(directory, 10, 0);
+    write(history, 1000);
+
+    assertEquals("[]", json(history.get(1000)));
+    assertEquals(2, history.get(1000).getSize());
+  }
+
+  @Test
+  public void prunesByCountAndDeletesUnreferencedDocuments() throws Exception {
+    SnapshotHistory history = new SnapshotHistory(directory, 2, 0);
+    write(history, 1000, infosystem("uri1", "a"), infosystem("uri2", "a"));
+    write(history, 2000, infosystem("uri1", "b"), infosystem("uri2", "a"));
+    write(history, 3000, infosystem("uri1", "c"), infosystem("uri2", "a"));
+
+    assertEquals(asList(2000L, 3000L), history.generations());
+    assertNull(history.get(1000));
+    assertEquals(3, objects());
+  }
+
+  @Test
+  public void keepsDocumentsOfGenerationBeingRead() throws Exception {
+    SnapshotHistory history = new SnapshotHistory(directory, 1, 0);
+    write(history, 1000, infosystem("uri1", "a"));
+    ArchivedGeneration reading = history.get(1000);
+
+    write(history, 2000, infosystem("uri1", "b"));
+
+    assertNull(history.get(1000));
+    JSONAssert.assertEquals("[{\"uri\":\"uri1\",\"name\":\"a\"}]", json(reading), true);
+    reading.close();
+    write(history, 3000, infosystem("uri1", "c"));
+    assertEquals(1, objects());
+  }
+
+  @Test
+  public void pruningReadsOnlyPrunedManifests() throws Exception {
+    SnapshotHistory history = new SnapshotHistory(directory, 2, 0);
+    write(history, 1000, infosystem("uri1", "a"));
+    write(history, 2000, infosystem("uri1", "b"));
+    Files.write(directory.resolve("generations").resolve("2000.manifest"), new byte[0]);
+
+    write(history, 3000, infosystem("uri1", "c"));
+
+    assertEquals(asList(2000L, 3000L), history.generations());
+    assertEquals(2, objects());
+  }
+
+  @Test
+  public void discardedGenerationDeletesItsDocuments() throws Exception {
+    SnapshotHistory history = new SnapshotHistory(directory, 10, 0);
+    write(history, 1000, infosystem("uri1", "a"));
+
+    try (SnapshotHistory.Writer writer = history.writer()) {
+      writer.add(infosystem("uri1", "a"), ChangeLog.digest(infosystem("uri1", "a")));
+      writer.add(infosystem("uri2", "b"), ChangeLog.digest(infosystem("uri2", "b")));
+    }
+
+    assertEquals(1, objects());
+    JSONAssert.assertEquals("[{\"uri\":\"uri1\",\"name\":\"a\"}]", json(history.get(1000)), true);
+  }
+
+  @Test
+  public void deletesDocumentsLeftBehindOnStart() throws Exception {
+    write(new SnapshotHistory(directory, 10, 0), 1000, infosystem("uri1", "a"));
+    Path left = directory.resolve("objects").resolve("00");
+    Files.createDirectories(left);
+    Files.write(left.resolve("00000000000000000000000000000000.json"), "{}".getBytes(UTF_8));
+    Files.write(left.resolve("00000000000000000000000000000001.json.tmp"), "{".getBytes(UTF_8));
+
+    SnapshotHistory history = new SnapshotHistory(directory, 10, 0);
+    write(history, 2000, infosystem("uri1", "a"));
+
+    assertEquals(1, objects());
+    JSONAssert.assertEquals("[{\"uri\":\"uri1\",\"name\":\"a\"}]", json(history.get(1000)), true);
+  }
+
+  @Test
+  public void prunesByAgeKeepingCurrentGeneration() throws Exception {
+    SnapshotHistory history = new SnapshotHistory(directory, 10, 1);
+    long old = System.currentTimeMillis() - DAYS.toMillis(2);
+    write(history, old - 1, infosystem("uri1", "a"));
+    write(history, old, infosystem("uri1", "b"));
+
+    assertEquals(asList(old), history.generations());
+    assertEquals(1, objects());
+  }
+
+  @Test
+  public void discardsUncommittedGeneration() throws Exception {
+    SnapshotHistory history = new SnapshotHistory(directory, 10, 0);
+    try (SnapshotHistory.Writer writer = history.writer()) {
+      writer.add(infosystem("uri1", "a"), ChangeLog.digest(infosystem("uri1", "a")));
+    }
+
+    assertTrue(history.generations().isEmpty());
+    try (Stream<Path> files = Files.list(directory.resolve("generations"))) {
+      assertEquals(0, files.count());
+    }
+  }
+
+  private static void write(SnapshotHistory history, long generation, Infosystem... infosystems) throws IOException {
+    try (SnapshotHistory.Writer writer = history.writer()) {
+      for (Infosystem infosystem : infosystems) writer.add(infosystem, ChangeLog.digest(infosystem));
+      writer.commit(generation);
+    }
+  }
+
+  private static String json(ArchivedGeneration generation) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    generation.writeTo(out);
+    return new String(out.toByteArray(), UTF_8);
+  }
+
+  private long objects() throws IOException {
+    try (Stream<Path> files = Files.walk(directory.resolve("objects"))) {
+      return files.filter(Files::isRegularFile).count();
+    }
+  }
+
+  private static Infosystem infosystem(String uri, String name) {
+    return new Infosystem(new JSONObject().put("uri", uri).put("name", name));
+  }
+}
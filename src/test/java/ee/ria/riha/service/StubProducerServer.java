@@ -0,0 +1,138 @@
+package ee.ria.riha.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * In-process http server posing as producers and the approvals feed. Every endpoint serves a fixed json body and can
+ * be made slow, failing or truncated: a failing request gets a 500 response, a truncated one announces the full
+ * length but closes the connection halfway through the body.
+ */
+class StubProducerServer implements Closeable {
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+  StubProducerServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    executor = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "stub-producer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  /**
+   * Serves the body at the path, replacing an endpoint served there before.
+   */
+  Endpoint serve(String path, byte[] body) {
+    Endpoint endpoint = new Endpoint("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + path, body);
+    endpoints.put(path, endpoint);
+    return endpoint;
+  }
+
+  Endpoint serve(String path, String body) {
+    return serve(path, body.getBytes(UTF_8));
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      Endpoint endpoint = endpoints.get(exchange.getRequestURI().getPath());
+      if (endpoint == null) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      endpoint.requests.incrementAndGet();
+      if (endpoint.latencyMillis > 0) Thread.sleep(endpoint.latencyMillis);
+
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      if (random.nextDouble() < endpoint.errorRatio) {
+        exchange.sendResponseHeaders(500, -1);
+        return;
+      }
+      byte[] body = endpoint.body;
+      exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+      exchange.sendResponseHeaders(200, body.length);
+      OutputStream out = exchange.getResponseBody();
+      if (random.nextDouble() < endpoint.truncatedRatio) {
+        out.write(body, 0, body.length / 2);
+        out.flush();
+        return;
+      }
+      out.write(body);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    finally {
+      exchange.close();
+    }
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Served body and the faults injected into its responses, changes apply to the next request.
+   */
+  static class Endpoint {
+    final String url;
+    final AtomicInteger requests = new AtomicInteger();
+    private volatile byte[] body;
+    private volatile long latencyMillis;
+    private volatile double errorRatio;
+    private volatile double truncatedRatio;
+
+    private Endpoint(String url, byte[] body) {
+      this.url = url;
+      this.body = body;
+    }
+
+    Endpoint setBody(byte[] body) {
+      this.body = body;
+      return this;
+    }
+
+    Endpoint setLatencyMillis(long latencyMillis) {
+      this.latencyMillis = latencyMillis;
+      return this;
+    }
+
+    /**
+     * @param errorRatio share of requests answered with a 500 response
+     */
+    Endpoint setErrorRatio(double errorRatio) {
+      this.errorRatio = errorRatio;
+      return this;
+    }
+
+    /**
+     * @param truncatedRatio share of responses whose body is cut off halfway
+     */
+    Endpoint setTruncatedRatio(double truncatedRatio) {
+      this.truncatedRatio = truncatedRatio;
+      return this;
+    }
+  }
+}